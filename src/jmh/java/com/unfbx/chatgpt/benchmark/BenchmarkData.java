@@ -0,0 +1,44 @@
+package com.unfbx.chatgpt.benchmark;
+
+import com.unfbx.chatgpt.entity.chat.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 描述：基准测试数据
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-13
+ */
+final class BenchmarkData {
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * 重复seed直到长度达到length
+     */
+    static String repeat(String seed, int length) {
+        StringBuilder builder = new StringBuilder(length + seed.length());
+        while (builder.length() < length) {
+            builder.append(seed);
+        }
+        return builder.substring(0, length);
+    }
+
+    /**
+     * 构造一段对话历史，第一条为system消息
+     */
+    static List<Message> history(int size) {
+        List<Message> messages = new ArrayList<>(size);
+        messages.add(Message.builder().role(Message.Role.SYSTEM)
+                .content(repeat("You are a helpful assistant, answer briefly and precisely. ", 2000)).build());
+        for (int i = 1; i < size; i++) {
+            Message.Role role = (i & 1) == 1 ? Message.Role.USER : Message.Role.ASSISTANT;
+            messages.add(Message.builder().role(role)
+                    .content(repeat("第" + i + "轮对话：关注微信公众号：程序员的黑洞。", 600)).build());
+        }
+        return messages;
+    }
+}
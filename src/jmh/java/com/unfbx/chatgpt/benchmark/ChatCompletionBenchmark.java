@@ -0,0 +1,42 @@
+package com.unfbx.chatgpt.benchmark;
+
+import com.unfbx.chatgpt.entity.chat.ChatCompletion;
+import com.unfbx.chatgpt.utils.TikTokensUtil;
+import com.unfbx.chatgpt.utils.TokensCache;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 描述：ChatCompletion.tokens() 随对话历史增长的基准测试
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-13
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatCompletionBenchmark {
+
+    @Param({"2", "10", "40"})
+    private int historySize;
+
+    @Param({"true", "false"})
+    private boolean cache;
+
+    private ChatCompletion chatCompletion;
+
+    @Setup
+    public void setup() {
+        chatCompletion = ChatCompletion.builder().messages(BenchmarkData.history(historySize)).build();
+        TikTokensUtil.setTokensCache(cache ? new TokensCache() : null);
+    }
+
+    @Benchmark
+    public long tokens() {
+        return chatCompletion.tokens();
+    }
+}
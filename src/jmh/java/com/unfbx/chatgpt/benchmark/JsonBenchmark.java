@@ -0,0 +1,79 @@
+package com.unfbx.chatgpt.benchmark;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.unfbx.chatgpt.entity.chat.ChatCompletion;
+import com.unfbx.chatgpt.entity.chat.ChatCompletionResponse;
+import com.unfbx.chatgpt.sse.DeltaExtractor;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 描述：ChatCompletion序列化、ChatCompletionResponse反序列化基准测试
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-13
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+
+    @Param({"2", "40"})
+    private int historySize;
+
+    private ObjectMapper mapper;
+
+    private ChatCompletion chatCompletion;
+
+    private String response;
+
+    private String chunk;
+
+    private final DeltaExtractor extractor = new DeltaExtractor();
+
+    private final StringBuilder content = new StringBuilder();
+
+    @Setup
+    public void setup() {
+        mapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        chatCompletion = ChatCompletion.builder().messages(BenchmarkData.history(historySize)).build();
+        response = "{\"id\":\"chatcmpl-123\",\"object\":\"chat.completion\",\"created\":1677652288,\"model\":\"gpt-3.5-turbo\","
+                + "\"choices\":[{\"index\":0,\"message\":{\"role\":\"assistant\",\"content\":\""
+                + BenchmarkData.repeat("Hello there, how may I assist you today? ", 2000)
+                + "\"},\"finish_reason\":\"stop\"}],\"usage\":{\"prompt_tokens\":9,\"completion_tokens\":12,\"total_tokens\":21}}";
+        chunk = "{\"id\":\"chatcmpl-123\",\"object\":\"chat.completion.chunk\",\"created\":1677652288,\"model\":\"gpt-3.5-turbo\","
+                + "\"choices\":[{\"delta\":{\"content\":\"Hello\"},\"index\":0,\"finish_reason\":null}]}";
+    }
+
+    @Benchmark
+    public String serializeChatCompletion() throws IOException {
+        return mapper.writeValueAsString(chatCompletion);
+    }
+
+    @Benchmark
+    public String serializeChatCompletionNewMapper() throws IOException {
+        return new ObjectMapper().writeValueAsString(chatCompletion);
+    }
+
+    @Benchmark
+    public ChatCompletionResponse deserializeResponse() throws IOException {
+        return mapper.readValue(response, ChatCompletionResponse.class);
+    }
+
+    @Benchmark
+    public ChatCompletionResponse deserializeStreamChunk() throws IOException {
+        return mapper.readValue(chunk, ChatCompletionResponse.class);
+    }
+
+    @Benchmark
+    public int extractStreamChunk() throws IOException {
+        content.setLength(0);
+        return extractor.extract(chunk, content);
+    }
+}
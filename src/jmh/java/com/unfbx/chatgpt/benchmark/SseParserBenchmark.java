@@ -0,0 +1,100 @@
+package com.unfbx.chatgpt.benchmark;
+
+import com.unfbx.chatgpt.sse.SseFrameReader;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okhttp3.internal.sse.RealEventSource;
+import okhttp3.sse.EventSource;
+import okhttp3.sse.EventSourceListener;
+import okio.Buffer;
+import okio.ByteString;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 描述：sse解析基准测试，对比okhttp-sse的ServerSentEventReader与SseFrameReader
+ * <p>
+ * 运行：mvn -Pbenchmark test-compile exec:exec -Djmh.args="SseParserBenchmark -prof gc"
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-20
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SseParserBenchmark {
+
+    private static final Request REQUEST = new Request.Builder().url("https://api.openai.com/v1/chat/completions").build();
+
+    private static final MediaType EVENT_STREAM = MediaType.parse("text/event-stream");
+
+    /**
+     * 单次回复的sse事件数，一个token一个事件
+     */
+    @Param({"1000"})
+    private int events;
+
+    private ByteString stream;
+
+    @Setup
+    public void setup() {
+        //RealEventSource依赖OkHttpClient静态初始化的Internal.instance
+        new OkHttpClient();
+        Buffer buffer = new Buffer();
+        for (int i = 0; i < events; i++) {
+            buffer.writeUtf8("data: {\"id\":\"chatcmpl-123\",\"object\":\"chat.completion.chunk\",\"created\":1677652288,"
+                    + "\"model\":\"gpt-3.5-turbo\",\"choices\":[{\"delta\":{\"content\":\"token" + i + "\"},"
+                    + "\"index\":0,\"finish_reason\":null}]}\n\n");
+        }
+        buffer.writeUtf8("data: [DONE]\n\n");
+        stream = buffer.readByteString();
+    }
+
+    /**
+     * ServerSentEventReader.processNextEvent不是public，通过RealEventSource.processResponse走okhttp-sse的完整解析流程
+     */
+    @Benchmark
+    public void okhttpSse(Blackhole blackhole) {
+        RealEventSource eventSource = new RealEventSource(REQUEST, new EventSourceListener() {
+            @Override
+            public void onEvent(EventSource eventSource, String id, String type, String data) {
+                blackhole.consume(data);
+            }
+        });
+        eventSource.processResponse(new Response.Builder()
+                .request(REQUEST)
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .body(ResponseBody.create(EVENT_STREAM, stream.size(), new Buffer().write(stream)))
+                .build());
+    }
+
+    @Benchmark
+    public void frameReader(Blackhole blackhole) throws IOException {
+        Buffer source = new Buffer().write(stream);
+        SseFrameReader reader = new SseFrameReader(source, new SseFrameReader.Callback() {
+            @Override
+            public void onData(Buffer data) {
+                blackhole.consume(data.size());
+            }
+
+            @Override
+            public void onDone() {
+                blackhole.consume(true);
+            }
+        });
+        while (reader.processNextFrame()) {
+        }
+    }
+}
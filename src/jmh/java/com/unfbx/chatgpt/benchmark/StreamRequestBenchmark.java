@@ -0,0 +1,253 @@
+package com.unfbx.chatgpt.benchmark;
+
+import cn.hutool.http.ContentType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.unfbx.chatgpt.entity.chat.ChatCompletion;
+import com.unfbx.chatgpt.utils.JsonRequestBody;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.sse.EventSource;
+import okhttp3.sse.EventSourceListener;
+import okhttp3.sse.EventSources;
+import okio.Buffer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.net.ServerSocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 描述：流式请求基准测试，对比每次请求新建EventSource.Factory、ObjectMapper并序列化为String，
+ * 与共享Factory、ObjectWriter并直接写入输出流的开销
+ * <p>
+ * perCall、shared只测请求构造和请求体序列化；perCallStream、sharedStream通过Factory向本地MockWebServer
+ * 发起完整的流式请求并等待onClosed，4个线程并发，统计吞吐量（ops/ms，0.5即500 streams/sec）和采样延迟（p99）。
+ * -prof gc统计的分配包含MockWebServer自身的分配。
+ * <p>
+ * JsonRequestBody的contentLength()曾经为-1，请求体使用Transfer-Encoding: chunked发送，
+ * 结束块单独发送，sharedStream每个请求比perCallStream多等待约40ms（Nagle算法和延迟ACK），现在返回实际长度。
+ * <p>
+ * 运行：mvn -Pbenchmark test-compile exec:exec -Djmh.args="StreamRequestBenchmark -prof gc"
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-19
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamRequestBenchmark {
+
+    private static final String URL = "https://api.openai.com/v1/chat/completions";
+    /**
+     * 模拟回复的sse事件数
+     */
+    private static final int EVENTS = 50;
+
+    @Param({"2", "40"})
+    private int historySize;
+
+    private OkHttpClient okHttpClient;
+
+    private EventSource.Factory factory;
+
+    private ObjectWriter writer;
+
+    private ChatCompletion chatCompletion;
+
+    private MockWebServer server;
+
+    private String serverUrl;
+
+    @Setup
+    public void setup() throws IOException {
+        okHttpClient = new OkHttpClient();
+        factory = EventSources.createFactory(okHttpClient);
+        writer = JsonRequestBody.writer(new ObjectMapper());
+        chatCompletion = ChatCompletion.builder().messages(BenchmarkData.history(historySize)).stream(true).build();
+        StringBuilder sse = new StringBuilder();
+        for (int i = 0; i < EVENTS; i++) {
+            sse.append("data: {\"id\":\"chatcmpl-123\",\"object\":\"chat.completion.chunk\",\"created\":1677652288,")
+                    .append("\"model\":\"gpt-3.5-turbo\",\"choices\":[{\"delta\":{\"content\":\"token").append(i)
+                    .append("\"},\"index\":0,\"finish_reason\":null}]}\n\n");
+        }
+        sse.append("data: [DONE]\n\n");
+        String body = sse.toString();
+        server = new MockWebServer();
+        server.setServerSocketFactory(new NoDelayServerSocketFactory());
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse().setHeader("Content-Type", "text/event-stream").setBody(body);
+            }
+        });
+        server.start();
+        serverUrl = server.url("/v1/chat/completions").toString();
+    }
+
+    /**
+     * MockWebServer会保存每个请求，每轮迭代后清空
+     */
+    @TearDown(Level.Iteration)
+    public void drainRequests() throws InterruptedException {
+        while (server.takeRequest(0, TimeUnit.MILLISECONDS) != null) {
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.shutdown();
+        okHttpClient.dispatcher().executorService().shutdown();
+        okHttpClient.connectionPool().evictAll();
+    }
+
+    /**
+     * 原有方式
+     */
+    @Benchmark
+    public Buffer perCall(Blackhole blackhole) throws IOException {
+        EventSource.Factory perCallFactory = EventSources.createFactory(okHttpClient);
+        blackhole.consume(perCallFactory);
+        return write(perCallRequest(URL));
+    }
+
+    /**
+     * 共享Factory、ObjectWriter，直接写入输出流
+     */
+    @Benchmark
+    public Buffer shared(Blackhole blackhole) throws IOException {
+        blackhole.consume(factory);
+        return write(sharedRequest(URL));
+    }
+
+    /**
+     * 原有方式，完整的流式请求
+     */
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Threads(4)
+    public int perCallStream() throws Exception {
+        return stream(EventSources.createFactory(okHttpClient), perCallRequest(serverUrl));
+    }
+
+    /**
+     * 共享Factory、ObjectWriter，完整的流式请求
+     */
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Threads(4)
+    public int sharedStream() throws Exception {
+        return stream(factory, sharedRequest(serverUrl));
+    }
+
+    private Request perCallRequest(String url) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        String requestBody = mapper.writeValueAsString(chatCompletion);
+        return new Request.Builder()
+                .url(url)
+                .post(RequestBody.create(MediaType.parse(ContentType.JSON.getValue()), requestBody))
+                .build();
+    }
+
+    private Request sharedRequest(String url) {
+        return new Request.Builder()
+                .url(url)
+                .post(new JsonRequestBody(writer, chatCompletion))
+                .build();
+    }
+
+    /**
+     * 模拟OkHttp发送请求体
+     */
+    private static Buffer write(Request request) throws IOException {
+        Buffer sink = new Buffer();
+        request.body().writeTo(sink);
+        return sink;
+    }
+
+    /**
+     * MockWebServer分别写出响应头和响应体，默认的Nagle算法和客户端的延迟ACK会让每个请求多等待约40ms，
+     * 真实的服务端一般会开启TCP_NODELAY
+     */
+    private static final class NoDelayServerSocketFactory extends ServerSocketFactory {
+
+        @Override
+        public ServerSocket createServerSocket() throws IOException {
+            return new ServerSocket() {
+                @Override
+                public Socket accept() throws IOException {
+                    Socket socket = super.accept();
+                    socket.setTcpNoDelay(true);
+                    return socket;
+                }
+            };
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog, InetAddress address) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * 发起流式请求，等待连接关闭
+     *
+     * @return 收到的事件数
+     */
+    private static int stream(EventSource.Factory factory, Request request) throws Exception {
+        CountDownLatch closed = new CountDownLatch(1);
+        int[] events = new int[1];
+        Throwable[] error = new Throwable[1];
+        factory.newEventSource(request, new EventSourceListener() {
+            @Override
+            public void onEvent(EventSource eventSource, String id, String type, String data) {
+                events[0]++;
+            }
+
+            @Override
+            public void onClosed(EventSource eventSource) {
+                closed.countDown();
+            }
+
+            @Override
+            public void onFailure(EventSource eventSource, Throwable t, Response response) {
+                error[0] = t != null ? t : new IOException(String.valueOf(response));
+                closed.countDown();
+            }
+        });
+        if (!closed.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("stream timeout");
+        }
+        if (error[0] != null) {
+            throw new IllegalStateException(error[0]);
+        }
+        return events[0];
+    }
+}
@@ -0,0 +1,80 @@
+package com.unfbx.chatgpt.benchmark;
+
+import com.knuddels.jtokkit.api.EncodingType;
+import com.unfbx.chatgpt.utils.TikTokensUtil;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 描述：TikTokensUtil编码、计算tokens基准测试
+ * <p>
+ * 运行：mvn -Pbenchmark test-compile exec:exec -Djmh.args="TikTokensBenchmark -prof gc"
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-13
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TikTokensBenchmark {
+
+    @Param({"ascii", "cjk"})
+    private String charset;
+
+    @Param({"1000", "30000"})
+    private int length;
+
+    private String text;
+
+    private List<String> documents;
+
+    @Setup
+    public void setup() {
+        String seed = "ascii".equals(charset)
+                ? "The quick brown fox jumps over the lazy dog, again and again. "
+                : "关注微信公众号：程序员的黑洞。进入chatgpt-java交流群获取最新版本更新通知。";
+        text = BenchmarkData.repeat(seed, length);
+        documents = new ArrayList<>(1000);
+        for (int i = 0; i < 1000; i++) {
+            documents.add(BenchmarkData.repeat(seed, 500) + i);
+        }
+        //关闭缓存，测量真实的编码开销
+        TikTokensUtil.setTokensCache(null);
+    }
+
+    @Benchmark
+    public List<Integer> encode() {
+        return TikTokensUtil.encode(EncodingType.CL100K_BASE, text);
+    }
+
+    @Benchmark
+    public int[] encodeToIntArray() {
+        return TikTokensUtil.encodeToIntArray(EncodingType.CL100K_BASE, text);
+    }
+
+    @Benchmark
+    public int tokens() {
+        return TikTokensUtil.tokens(EncodingType.CL100K_BASE, text);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void sequentialTokens(Blackhole blackhole) {
+        for (String document : documents) {
+            blackhole.consume(TikTokensUtil.tokens(EncodingType.CL100K_BASE, document));
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int[] batchTokens() {
+        return TikTokensUtil.batchTokens(EncodingType.CL100K_BASE, documents);
+    }
+}
@@ -2,15 +2,15 @@ package com.unfbx.chatgpt;
 
 import cn.hutool.core.collection.CollectionUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.http.ContentType;
 import cn.hutool.json.JSONUtil;
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.unfbx.chatgpt.constant.OpenAIConst;
 import com.unfbx.chatgpt.entity.billing.BillingUsage;
 import com.unfbx.chatgpt.entity.billing.CreditGrantsResponse;
 import com.unfbx.chatgpt.entity.billing.Subscription;
 import com.unfbx.chatgpt.entity.chat.ChatCompletion;
+import com.unfbx.chatgpt.entity.chat.ChatCompletionResponse;
 import com.unfbx.chatgpt.entity.chat.Message;
 import com.unfbx.chatgpt.entity.common.OpenAiResponse;
 import com.unfbx.chatgpt.entity.completions.Completion;
@@ -19,7 +19,21 @@ import com.unfbx.chatgpt.exception.CommonError;
 import com.unfbx.chatgpt.function.KeyRandomStrategy;
 import com.unfbx.chatgpt.function.KeyStrategyFunction;
 import com.unfbx.chatgpt.interceptor.HeaderAuthorizationInterceptor;
+import com.unfbx.chatgpt.sse.ChatChoiceIterator;
+import com.unfbx.chatgpt.sse.ChoiceListener;
 import com.unfbx.chatgpt.sse.ConsoleEventSourceListener;
+import com.unfbx.chatgpt.sse.DemultiplexingEventSourceListener;
+import com.unfbx.chatgpt.sse.FlowableEventSourceListener;
+import com.unfbx.chatgpt.sse.FrameEventSource;
+import com.unfbx.chatgpt.sse.FrameListener;
+import com.unfbx.chatgpt.sse.SseFrameReader;
+import com.unfbx.chatgpt.sse.ResumableEventSourceListener;
+import com.unfbx.chatgpt.sse.SharedChatStream;
+import com.unfbx.chatgpt.sse.StopConditionEventSourceListener;
+import com.unfbx.chatgpt.sse.StreamHandle;
+import com.unfbx.chatgpt.sse.WriterFrameListener;
+import com.unfbx.chatgpt.utils.JsonRequestBody;
+import io.reactivex.Flowable;
 import io.reactivex.Single;
 import lombok.Getter;
 import lombok.SneakyThrows;
@@ -28,15 +42,25 @@ import okhttp3.*;
 import okhttp3.sse.EventSource;
 import okhttp3.sse.EventSourceListener;
 import okhttp3.sse.EventSources;
+import okio.Buffer;
 import org.jetbrains.annotations.NotNull;
 import retrofit2.Retrofit;
 import retrofit2.adapter.rxjava2.RxJava2CallAdapterFactory;
 import retrofit2.converter.jackson.JacksonConverterFactory;
 
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 
 /**
@@ -72,6 +96,15 @@ public class OpenAiStreamClient {
     @Getter
     private OpenAiApi openAiApi;
 
+    /**
+     * sse连接工厂，每个client共用一个
+     */
+    private final EventSource.Factory eventSourceFactory;
+    /**
+     * 请求参数序列化，每个client共用一个
+     */
+    private final ObjectWriter requestWriter;
+
     /**
      * 构造实例对象
      *
@@ -103,6 +136,8 @@ public class OpenAiStreamClient {
                     .build();
         }
         okHttpClient = builder.okHttpClient;
+        this.eventSourceFactory = EventSources.createFactory(this.okHttpClient);
+        this.requestWriter = JsonRequestBody.writer(new ObjectMapper());
 
         this.openAiApi = new Retrofit.Builder()
                 .baseUrl(apiHost)
@@ -131,9 +166,10 @@ public class OpenAiStreamClient {
      *
      * @param completion          open ai 参数
      * @param eventSourceListener sse监听器
+     * @return 请求句柄，可以取消请求
      * @see ConsoleEventSourceListener
      */
-    public void streamCompletions(Completion completion, EventSourceListener eventSourceListener) {
+    public StreamHandle streamCompletions(Completion completion, EventSourceListener eventSourceListener) {
         if (Objects.isNull(eventSourceListener)) {
             log.error("参数异常：EventSourceListener不能为空，可以参考：com.unfbx.chatgpt.sse.ConsoleEventSourceListener");
             throw new BaseException(CommonError.PARAM_ERROR);
@@ -146,21 +182,18 @@ public class OpenAiStreamClient {
             completion.setStream(true);
         }
         try {
-            EventSource.Factory factory = EventSources.createFactory(this.okHttpClient);
-            ObjectMapper mapper = new ObjectMapper();
-            String requestBody = mapper.writeValueAsString(completion);
             Request request = new Request.Builder()
                     .url(this.apiHost + "v1/completions")
-                    .post(RequestBody.create(MediaType.parse(ContentType.JSON.getValue()), requestBody))
+                    .post(new JsonRequestBody(this.requestWriter, completion))
                     .build();
             //创建事件
-            EventSource eventSource = factory.newEventSource(request, eventSourceListener);
-        } catch (JsonProcessingException e) {
-            log.error("请求参数解析异常：{}", e);
-            e.printStackTrace();
+            StreamHandle handle = new StreamHandle();
+            handle.bind(this.eventSourceFactory.newEventSource(request, handle.listener(eventSourceListener)));
+            return handle;
         } catch (Exception e) {
             log.error("请求参数解析异常：{}", e);
             e.printStackTrace();
+            return StreamHandle.failed(e);
         }
     }
 
@@ -169,14 +202,15 @@ public class OpenAiStreamClient {
      *
      * @param question            请求参数
      * @param eventSourceListener sse监听器
+     * @return 请求句柄，可以取消请求
      * @see ConsoleEventSourceListener
      */
-    public void streamCompletions(String question, EventSourceListener eventSourceListener) {
+    public StreamHandle streamCompletions(String question, EventSourceListener eventSourceListener) {
         Completion q = Completion.builder()
                 .prompt(question)
                 .stream(true)
                 .build();
-        this.streamCompletions(q, eventSourceListener);
+        return this.streamCompletions(q, eventSourceListener);
     }
 
     /**
@@ -184,32 +218,33 @@ public class OpenAiStreamClient {
      *
      * @param chatCompletion      问答参数
      * @param eventSourceListener sse监听器
+     * @return 请求句柄，可以取消请求
      * @see ConsoleEventSourceListener
      */
-    public void streamChatCompletion(ChatCompletion chatCompletion, EventSourceListener eventSourceListener) {
+    public StreamHandle streamChatCompletion(ChatCompletion chatCompletion, EventSourceListener eventSourceListener) {
         if (Objects.isNull(eventSourceListener)) {
             log.error("参数异常：EventSourceListener不能为空，可以参考：com.unfbx.chatgpt.sse.ConsoleEventSourceListener");
             throw new BaseException(CommonError.PARAM_ERROR);
         }
+        return this.streamChatCompletion(chatCompletion, eventSourceListener, new StreamHandle());
+    }
+
+    /**
+     * 使用调用方创建的句柄发起流式请求，需要在连接建立前绑定句柄的监听器使用
+     */
+    private StreamHandle streamChatCompletion(ChatCompletion chatCompletion, EventSourceListener eventSourceListener, StreamHandle handle) {
         if (!chatCompletion.isStream()) {
             chatCompletion.setStream(true);
         }
         try {
-            EventSource.Factory factory = EventSources.createFactory(this.okHttpClient);
-            ObjectMapper mapper = new ObjectMapper();
-            String requestBody = mapper.writeValueAsString(chatCompletion);
-            Request request = new Request.Builder()
-                    .url(this.apiHost + "v1/chat/completions")
-                    .post(RequestBody.create(MediaType.parse(ContentType.JSON.getValue()), requestBody))
-                    .build();
+            Request request = this.chatCompletionRequest(chatCompletion);
             //创建事件
-            EventSource eventSource = factory.newEventSource(request, eventSourceListener);
-        } catch (JsonProcessingException e) {
-            log.error("请求参数解析异常：{}", e);
-            e.printStackTrace();
+            handle.bind(this.eventSourceFactory.newEventSource(request, handle.listener(eventSourceListener)));
+            return handle;
         } catch (Exception e) {
             log.error("请求参数解析异常：{}", e);
             e.printStackTrace();
+            return StreamHandle.failed(e);
         }
     }
 
@@ -218,14 +253,319 @@ public class OpenAiStreamClient {
      *
      * @param messages            问答列表
      * @param eventSourceListener sse监听器
+     * @return 请求句柄，可以取消请求
      * @see ConsoleEventSourceListener
      */
-    public void streamChatCompletion(List<Message> messages, EventSourceListener eventSourceListener) {
+    public StreamHandle streamChatCompletion(List<Message> messages, EventSourceListener eventSourceListener) {
         ChatCompletion chatCompletion = ChatCompletion.builder()
                 .messages(messages)
                 .stream(true)
                 .build();
-        this.streamChatCompletion(chatCompletion, eventSourceListener);
+        return this.streamChatCompletion(chatCompletion, eventSourceListener);
+    }
+
+    /**
+     * 流式输出，连接中断时把已经收到的内容作为assistant消息续接请求
+     *
+     * @param chatCompletion      问答参数
+     * @param eventSourceListener sse监听器，续接前后的delta连续回调，续接失败时才收到onFailure
+     * @param maxResumes          最多续接的次数
+     * @return 请求句柄，取消时关闭当前连接，不再续接
+     * @see ResumableEventSourceListener
+     */
+    public StreamHandle streamChatCompletion(ChatCompletion chatCompletion, EventSourceListener eventSourceListener, int maxResumes) {
+        if (Objects.isNull(eventSourceListener) || maxResumes < 0) {
+            log.error("参数异常：EventSourceListener不能为空，续接次数不能小于0");
+            throw new BaseException(CommonError.PARAM_ERROR);
+        }
+        requireSingleChoice(chatCompletion);
+        if (!chatCompletion.isStream()) {
+            chatCompletion.setStream(true);
+        }
+        StreamHandle handle = new StreamHandle();
+        try {
+            new ResumableEventSourceListener(chatCompletion, handle.listener(eventSourceListener), handle, maxResumes,
+                    (request, listener) -> this.eventSourceFactory.newEventSource(this.chatCompletionRequest(request), listener))
+                    .connect();
+        } catch (Exception e) {
+            log.error("请求参数解析异常：{}", e);
+            return StreamHandle.failed(e);
+        }
+        return handle;
+    }
+
+    /**
+     * 流式输出，任一结束条件满足时提前结束
+     *
+     * @param chatCompletion      问答参数
+     * @param eventSourceListener sse监听器，提前结束时收到finish_reason为client_stop的事件和[DONE]
+     * @param stopConditions      结束条件，参数为截止目前累计的回复内容
+     * @return 请求句柄，提前结束时状态为正常结束
+     * @see StopConditionEventSourceListener
+     */
+    public StreamHandle streamChatCompletion(ChatCompletion chatCompletion, EventSourceListener eventSourceListener,
+                                             List<Predicate<CharSequence>> stopConditions) {
+        if (Objects.isNull(eventSourceListener) || CollectionUtil.isEmpty(stopConditions)) {
+            log.error("参数异常：EventSourceListener和结束条件不能为空");
+            throw new BaseException(CommonError.PARAM_ERROR);
+        }
+        requireSingleChoice(chatCompletion);
+        StopConditionEventSourceListener listener = new StopConditionEventSourceListener(eventSourceListener, stopConditions);
+        //先绑定句柄再发起请求，第一个delta就满足结束条件时也通过句柄正常结束
+        StreamHandle handle = new StreamHandle();
+        listener.bind(handle);
+        return this.streamChatCompletion(chatCompletion, listener, handle);
+    }
+
+    /**
+     * 流式输出，n>1时按choice拆分，每个choice使用独立的监听器
+     *
+     * @param chatCompletion 问答参数，n为候选回复数
+     * @param factory        根据choice的index创建监听器
+     * @return 请求句柄，可以取消请求
+     * @see DemultiplexingEventSourceListener
+     */
+    public StreamHandle streamChatCompletion(ChatCompletion chatCompletion, IntFunction<ChoiceListener> factory) {
+        if (Objects.isNull(factory)) {
+            log.error("参数异常：ChoiceListener不能为空");
+            throw new BaseException(CommonError.PARAM_ERROR);
+        }
+        return this.streamChatCompletion(chatCompletion, new DemultiplexingEventSourceListener(factory));
+    }
+
+    /**
+     * 流式输出，使用低分配的sse帧解析替代okhttp-sse，data以字节形式回调
+     *
+     * @param chatCompletion 问答参数
+     * @param frameListener  帧监听器
+     * @return 请求句柄，可以取消请求
+     * @see SseFrameReader
+     */
+    public StreamHandle streamChatCompletion(ChatCompletion chatCompletion, FrameListener frameListener) {
+        if (Objects.isNull(frameListener)) {
+            log.error("参数异常：FrameListener不能为空");
+            throw new BaseException(CommonError.PARAM_ERROR);
+        }
+        if (!chatCompletion.isStream()) {
+            chatCompletion.setStream(true);
+        }
+        Request request = this.chatCompletionRequest(chatCompletion);
+        StreamHandle handle = new StreamHandle();
+        handle.bind(FrameEventSource.connect(this.okHttpClient, request, handle.listener(frameListener)));
+        return handle;
+    }
+
+    /**
+     * 流式输出，content增量写入writer
+     *
+     * @param chatCompletion 问答参数
+     * @param writer         content写入的目标，由调用方负责关闭
+     * @return 连接结束时返回finish_reason，取消时关闭sse连接
+     * @see WriterFrameListener
+     */
+    public CompletableFuture<String> streamChatCompletion(ChatCompletion chatCompletion, Writer writer) {
+        if (Objects.isNull(writer)) {
+            log.error("参数异常：Writer不能为空");
+            throw new BaseException(CommonError.PARAM_ERROR);
+        }
+        WriterFrameListener listener = new WriterFrameListener(writer);
+        StreamHandle handle = this.streamChatCompletion(chatCompletion, listener);
+        CompletableFuture<String> result = listener.getResult();
+        result.whenComplete((finishReason, t) -> {
+            if (result.isCancelled()) {
+                handle.cancel();
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 流式输出，content以UTF-8编码增量写入channel
+     *
+     * @param chatCompletion 问答参数
+     * @param channel        content写入的目标，由调用方负责关闭
+     * @return 连接结束时返回finish_reason，取消时关闭sse连接
+     */
+    public CompletableFuture<String> streamChatCompletion(ChatCompletion chatCompletion, WritableByteChannel channel) {
+        if (Objects.isNull(channel)) {
+            log.error("参数异常：WritableByteChannel不能为空");
+            throw new BaseException(CommonError.PARAM_ERROR);
+        }
+        return this.streamChatCompletion(chatCompletion, Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1));
+    }
+
+    /**
+     * 流式输出，把OpenAI返回的sse原始字节直接转发到out，不做反序列化和重新序列化
+     *
+     * @param chatCompletion 问答参数
+     * @param out            转发目标，例如网关的响应输出流，每帧结束时flush
+     * @return 请求句柄，可以取消请求
+     * @see #relayChatCompletion(ChatCompletion, OutputStream, FrameListener)
+     */
+    public StreamHandle relayChatCompletion(ChatCompletion chatCompletion, OutputStream out) {
+        return this.relayChatCompletion(chatCompletion, out, null);
+    }
+
+    /**
+     * 流式输出，把OpenAI返回的sse原始字节直接转发到channel
+     *
+     * @param chatCompletion 问答参数
+     * @param channel        转发目标
+     * @param tap            旁路监听器，可以为null
+     * @return 请求句柄，可以取消请求
+     */
+    public StreamHandle relayChatCompletion(ChatCompletion chatCompletion, WritableByteChannel channel, FrameListener tap) {
+        if (Objects.isNull(channel)) {
+            log.error("参数异常：WritableByteChannel不能为空");
+            throw new BaseException(CommonError.PARAM_ERROR);
+        }
+        return this.relayChatCompletion(chatCompletion, Channels.newOutputStream(channel), tap);
+    }
+
+    /**
+     * 流式输出，把OpenAI返回的sse原始字节直接转发到out
+     * <p>
+     * 字节从OkHttp的读取缓冲区直接写入out，每帧结束时flush，
+     * tap在转发的同时收到每帧的data字节，可以用于tokens统计、内容落库等，
+     * 回调在OkHttp读取线程中执行，不要做耗时操作。
+     * out建议使用带缓冲的输出流，否则每一行都会产生一次写调用。
+     *
+     * @param chatCompletion 问答参数
+     * @param out            转发目标
+     * @param tap            旁路监听器，可以为null
+     * @return 请求句柄，可以取消请求
+     */
+    public StreamHandle relayChatCompletion(ChatCompletion chatCompletion, OutputStream out, FrameListener tap) {
+        if (Objects.isNull(out)) {
+            log.error("参数异常：OutputStream不能为空");
+            throw new BaseException(CommonError.PARAM_ERROR);
+        }
+        if (!chatCompletion.isStream()) {
+            chatCompletion.setStream(true);
+        }
+        FrameListener listener = Objects.nonNull(tap) ? tap : new FrameListener() {
+            @Override
+            public void onData(EventSource eventSource, Buffer data) {
+            }
+        };
+        Request request = this.chatCompletionRequest(chatCompletion);
+        StreamHandle handle = new StreamHandle();
+        handle.bind(FrameEventSource.relay(this.okHttpClient, request, handle.listener(listener), out));
+        return handle;
+    }
+
+    /**
+     * 流式输出，返回Flowable
+     * 由下游request驱动，缓冲的事件超过 {@link FlowableEventSourceListener#DEFAULT_CAPACITY} 时暂停读取响应，取消订阅时关闭sse连接
+     *
+     * @param chatCompletion 问答参数
+     * @return 每个sse事件对应一个ChatCompletionResponse，收到[DONE]时结束
+     */
+    public Flowable<ChatCompletionResponse> streamChatCompletion(ChatCompletion chatCompletion) {
+        return this.streamChatCompletion(chatCompletion, FlowableEventSourceListener.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * 流式输出，返回Flowable
+     * 由下游request驱动，缓冲的事件超过capacity时暂停读取响应，取消订阅时关闭sse连接
+     *
+     * @param chatCompletion 问答参数
+     * @param capacity       下游没有request时最多缓冲的事件数
+     * @return 每个sse事件对应一个ChatCompletionResponse，收到[DONE]时结束
+     */
+    public Flowable<ChatCompletionResponse> streamChatCompletion(ChatCompletion chatCompletion, int capacity) {
+        if (!chatCompletion.isStream()) {
+            chatCompletion.setStream(true);
+        }
+        return Flowable.fromPublisher(subscriber -> {
+            FlowableEventSourceListener listener = new FlowableEventSourceListener(subscriber, capacity);
+            subscriber.onSubscribe(listener);
+            Request request = this.chatCompletionRequest(chatCompletion);
+            //创建事件
+            listener.bind(this.eventSourceFactory.newEventSource(request, listener));
+        });
+    }
+
+    /**
+     * 流式输出，只返回第一个choice的文本内容
+     *
+     * @param chatCompletion 问答参数
+     * @return delta中的content
+     * @see #streamChatCompletion(ChatCompletion)
+     */
+    public Flowable<String> streamChatCompletionText(ChatCompletion chatCompletion) {
+        return this.streamChatCompletion(chatCompletion)
+                .filter(response -> CollectionUtil.isNotEmpty(response.getChoices())
+                        && Objects.nonNull(response.getChoices().get(0).getDelta())
+                        && Objects.nonNull(response.getChoices().get(0).getDelta().getContent()))
+                .map(response -> response.getChoices().get(0).getDelta().getContent());
+    }
+
+    /**
+     * 流式输出，以阻塞迭代器的方式逐个读取choice
+     *
+     * @param chatCompletion 问答参数
+     * @return 迭代器，使用完需要关闭，提前关闭时取消请求
+     * @see ChatChoiceIterator
+     */
+    public ChatChoiceIterator streamChatCompletionIterator(ChatCompletion chatCompletion) {
+        ChatChoiceIterator iterator = new ChatChoiceIterator();
+        iterator.bind(this.streamChatCompletion(chatCompletion, iterator));
+        return iterator;
+    }
+
+    /**
+     * 流式输出，以阻塞Stream的方式读取第一个choice的文本内容
+     * <pre>
+     * try (Stream&lt;String&gt; content = client.streamChatCompletionContent(chatCompletion)) {
+     *     content.forEach(System.out::print);
+     * }
+     * </pre>
+     *
+     * @param chatCompletion 问答参数
+     * @return delta中的content，关闭Stream时取消请求
+     */
+    public Stream<String> streamChatCompletionContent(ChatCompletion chatCompletion) {
+        return this.streamChatCompletionIterator(chatCompletion).content();
+    }
+
+    /**
+     * 流式输出，多个订阅者共享同一次请求
+     * 第一个订阅者订阅时发起请求，最后一个订阅者取消订阅时关闭连接
+     *
+     * @param chatCompletion 问答参数
+     * @return 共享的流式输出
+     * @see SharedChatStream
+     */
+    public SharedChatStream shareChatCompletion(ChatCompletion chatCompletion) {
+        requireSingleChoice(chatCompletion);
+        if (!chatCompletion.isStream()) {
+            chatCompletion.setStream(true);
+        }
+        return new SharedChatStream(this.eventSourceFactory, this.chatCompletionRequest(chatCompletion));
+    }
+
+    /**
+     * 按累计的content处理回复的功能（续接、提前结束、共享流）只支持n=1的请求
+     */
+    private static void requireSingleChoice(ChatCompletion chatCompletion) {
+        if (Objects.nonNull(chatCompletion.getN()) && chatCompletion.getN() != 1) {
+            log.error("参数异常：只支持n=1的请求，n：{}", chatCompletion.getN());
+            throw new BaseException(CommonError.PARAM_ERROR);
+        }
+    }
+
+    /**
+     * 构造chat completion请求，请求参数在发送时直接序列化到输出流
+     *
+     * @param chatCompletion 问答参数
+     * @return
+     */
+    private Request chatCompletionRequest(ChatCompletion chatCompletion) {
+        return new Request.Builder()
+                .url(this.apiHost + "v1/chat/completions")
+                .post(new JsonRequestBody(this.requestWriter, chatCompletion))
+                .build();
     }
 
     /**
@@ -4,13 +4,18 @@ import cn.hutool.core.collection.CollectionUtil;
 import cn.hutool.core.util.StrUtil;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.IntArrayList;
+import com.unfbx.chatgpt.exception.BaseException;
+import com.unfbx.chatgpt.exception.CommonError;
+import com.unfbx.chatgpt.utils.ModelProfile;
 import com.unfbx.chatgpt.utils.TikTokensUtil;
 import lombok.*;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.Serializable;
-import java.util.List;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
 
 /**
  * 描述： chat
@@ -97,6 +102,11 @@ public class ChatCompletion implements Serializable {
      */
     private String user;
 
+    /**
+     * 截断历史消息时默认为回复预留的tokens数
+     */
+    public static final int DEFAULT_MIN_COMPLETION_TOKENS = 256;
+
     /**
      * 获取当前参数的tokens数
      *
@@ -111,37 +121,157 @@ public class ChatCompletion implements Serializable {
     }
 
 
+    /**
+     * 请求前预处理（可选）：根据模型的上下文长度截断历史消息，并调整maxTokens
+     * <p>
+     * 1、从最早的非system消息开始移除，直到请求的tokens + minCompletionTokens不超过上下文长度，最后一条消息始终保留；<br/>
+     * 2、只剩最后一条消息仍然超长时，保留其内容末尾的部分；<br/>
+     * 3、maxTokens为空或者超过剩余可用tokens时，设置为剩余可用tokens。
+     * <p>
+     * 不会修改原有的messages集合和Message对象。minCompletionTokens不小于上下文长度时抛出参数异常。
+     *
+     * @param minCompletionTokens 至少为回复预留的tokens数
+     * @return this
+     */
+    public ChatCompletion fitContextWindow(int minCompletionTokens) {
+        ModelProfile profile = ModelProfile.of(this.model);
+        if (Objects.isNull(profile)) {
+            log.warn("[{}]模型上下文长度未知，不做截断处理", this.model);
+            return this;
+        }
+        int contextWindow = profile.getContextWindow();
+        if (minCompletionTokens < 0 || minCompletionTokens >= contextWindow) {
+            log.error("参数异常：minCompletionTokens：{}，需要小于模型上下文长度：{}", minCompletionTokens, contextWindow);
+            throw new BaseException(CommonError.PARAM_ERROR);
+        }
+        if (CollectionUtil.isEmpty(this.messages)) {
+            return this;
+        }
+        int budget = contextWindow - minCompletionTokens;
+        ChatConversation conversation = new ChatConversation(profile);
+        conversation.addAll(this.messages);
+        boolean changed = false;
+        int index = 0;
+        while (conversation.tokens() > budget && index < conversation.size() - 1) {
+            if (Message.Role.SYSTEM.getName().equals(conversation.getMessages().get(index).getRole())) {
+                index++;
+                continue;
+            }
+            conversation.remove(index);
+            changed = true;
+        }
+        if (conversation.tokens() > budget) {
+            int last = conversation.size() - 1;
+            Message message = conversation.getMessages().get(last);
+            Encoding enc = TikTokensUtil.getEncoding(profile.getEncodingType());
+            IntArrayList encoded = enc.encode(StrUtil.nullToEmpty(message.getContent()));
+            int keep = encoded.size() - (conversation.tokens() - budget);
+            if (keep <= 0) {
+                log.error("请求tokens数：{}，超过模型上下文长度：{}", conversation.tokens(), contextWindow);
+                throw new BaseException(CommonError.CONTEXT_LENGTH_EXCEEDED);
+            }
+            String content = tail(enc, message.getContent(), encoded, keep);
+            conversation.remove(last);
+            conversation.add(new Message(message.getRole(), content, message.getName()));
+            changed = true;
+        }
+        int remaining = contextWindow - conversation.tokens();
+        if (remaining <= 0) {
+            log.error("请求tokens数：{}，超过模型上下文长度：{}", conversation.tokens(), contextWindow);
+            throw new BaseException(CommonError.CONTEXT_LENGTH_EXCEEDED);
+        }
+        if (changed) {
+            this.messages = new ArrayList<>(conversation.getMessages());
+        }
+        if (Objects.isNull(this.maxTokens) || this.maxTokens > remaining) {
+            this.maxTokens = remaining;
+        }
+        return this;
+    }
+
+    /**
+     * 保留文本末尾不超过keep个tokens的内容
+     * <p>
+     * 直接解码末尾的token可能拆开多字节字符（中文、emoji），这里换算成原文的UTF-8字节下标，
+     * 跳到下一个完整字符的开头再截取原文。截取后重新计算tokens数，超过keep时继续丢弃开头的token。
+     *
+     * @param enc     Encoding
+     * @param text    原文
+     * @param encoded 原文编码结果
+     * @param keep    保留的tokens数
+     * @return
+     */
+    private static String tail(Encoding enc, String text, IntArrayList encoded, int keep) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        IntArrayList single = new IntArrayList(1);
+        int start = encoded.size() - keep;
+        int offset = 0;
+        for (int i = 0; i < start; i++) {
+            offset += tokenBytes(enc, single, encoded.get(i));
+        }
+        while (start < encoded.size()) {
+            int from = offset;
+            while (from < bytes.length && (bytes[from] & 0xC0) == 0x80) {
+                from++;
+            }
+            String content = new String(bytes, from, bytes.length - from, StandardCharsets.UTF_8);
+            if (enc.countTokens(content) <= keep) {
+                return content;
+            }
+            offset += tokenBytes(enc, single, encoded.get(start++));
+        }
+        return "";
+    }
+
+    private static int tokenBytes(Encoding enc, IntArrayList single, int token) {
+        single.clear();
+        single.add(token);
+        return enc.decodeBytes(single).length;
+    }
+
+    /**
+     * 请求前预处理，至少为回复预留 {@link #DEFAULT_MIN_COMPLETION_TOKENS} 个tokens
+     *
+     * @return this
+     * @see #fitContextWindow(int)
+     */
+    public ChatCompletion fitContextWindow() {
+        return fitContextWindow(DEFAULT_MIN_COMPLETION_TOKENS);
+    }
+
     @Getter
     @AllArgsConstructor
     public enum Model {
         /**
          * gpt-3.5-turbo
          */
-        GPT_3_5_TURBO("gpt-3.5-turbo"),
+        GPT_3_5_TURBO("gpt-3.5-turbo", 4096),
         /**
          * 临时模型，不建议使用
          */
-        GPT_3_5_TURBO_0301("gpt-3.5-turbo-0301"),
+        GPT_3_5_TURBO_0301("gpt-3.5-turbo-0301", 4096),
         /**
          * GPT4.0
          */
-        GPT_4("gpt-4"),
+        GPT_4("gpt-4", 8192),
         /**
          * 临时模型，不建议使用
          */
-        GPT_4_0314("gpt-4-0314"),
+        GPT_4_0314("gpt-4-0314", 8192),
         /**
          * GPT4.0 超长上下文
          */
-        GPT_4_32K("gpt-4-32k"),
+        GPT_4_32K("gpt-4-32k", 32768),
         /**
          * 临时模型，不建议使用
          */
-        GPT_4_32K_0314("gpt-4-32k-0314"),
+        GPT_4_32K_0314("gpt-4-32k-0314", 32768),
         ;
         private String name;
+        /**
+         * 上下文长度：请求tokens + 回复tokens
+         */
+        private int contextWindow;
     }
 
 }
-
-
@@ -0,0 +1,157 @@
+package com.unfbx.chatgpt.entity.chat;
+
+import com.unfbx.chatgpt.utils.ModelProfile;
+import com.unfbx.chatgpt.utils.TikTokensUtil;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * 描述：会话上下文，追加或者移除消息时增量维护tokens数
+ * <p>
+ * 每条消息只在加入时计算一次tokens，{@link #tokens()} 直接返回累计值，
+ * 计算规则和 {@link TikTokensUtil#tokens(String, List)} 保持一致。
+ * 消息加入后不要再修改其内容，否则累计的tokens数不会同步更新。
+ * 非线程安全。
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-11
+ */
+@Slf4j
+public class ChatConversation {
+    /**
+     * 模型名称
+     */
+    @Getter
+    private final String model;
+    /**
+     * 模型配置，构造时解析一次
+     */
+    private final ModelProfile profile;
+
+    private final List<Message> messages = new ArrayList<>();
+    /**
+     * 与messages一一对应的tokens数
+     */
+    private int[] messageTokens = new int[16];
+    /**
+     * 所有消息的tokens数之和，不包含回复前缀
+     */
+    private int sum;
+
+    public ChatConversation() {
+        this(ChatCompletion.Model.GPT_3_5_TURBO.getName());
+    }
+
+    public ChatConversation(@NotNull String model) {
+        this.model = model;
+        this.profile = ModelProfile.of(model);
+        if (Objects.isNull(this.profile)) {
+            log.warn("[{}]模型不存在或者暂不支持计算tokens", model);
+        }
+    }
+
+    public ChatConversation(@NotNull ModelProfile profile) {
+        this.model = profile.getName();
+        this.profile = profile;
+    }
+
+    /**
+     * 追加消息
+     *
+     * @param message 消息
+     * @return 当前消息的tokens数
+     */
+    public int add(@NotNull Message message) {
+        int tokens = Objects.isNull(profile) ? 0 : TikTokensUtil.tokens(profile, message);
+        int size = messages.size();
+        if (size == messageTokens.length) {
+            messageTokens = Arrays.copyOf(messageTokens, size << 1);
+        }
+        messages.add(message);
+        messageTokens[size] = tokens;
+        sum += tokens;
+        return tokens;
+    }
+
+    /**
+     * 批量追加消息
+     *
+     * @param messages 消息列表
+     */
+    public void addAll(@NotNull List<Message> messages) {
+        for (Message message : messages) {
+            add(message);
+        }
+    }
+
+    /**
+     * 移除指定位置的消息
+     *
+     * @param index 下标
+     * @return 被移除的消息
+     */
+    public Message remove(int index) {
+        Message message = messages.remove(index);
+        sum -= messageTokens[index];
+        System.arraycopy(messageTokens, index + 1, messageTokens, index, messages.size() - index);
+        return message;
+    }
+
+    /**
+     * 清空消息
+     */
+    public void clear() {
+        messages.clear();
+        sum = 0;
+    }
+
+    /**
+     * 获取指定位置消息的tokens数
+     *
+     * @param index 下标
+     * @return
+     */
+    public int tokens(int index) {
+        if (index < 0 || index >= messages.size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + messages.size());
+        }
+        return messageTokens[index];
+    }
+
+    /**
+     * 获取当前会话的tokens数，和 {@link TikTokensUtil#tokens(String, List)} 结果一致，模型不支持计算tokens时返回0
+     *
+     * @return
+     */
+    public int tokens() {
+        if (Objects.isNull(profile)) {
+            return 0;
+        }
+        return sum + TikTokensUtil.REPLY_PRIMING_TOKENS;
+    }
+
+    /**
+     * 消息条数
+     *
+     * @return
+     */
+    public int size() {
+        return messages.size();
+    }
+
+    /**
+     * 只读的消息列表，可以直接用于构造 {@link ChatCompletion}
+     *
+     * @return
+     */
+    public List<Message> getMessages() {
+        return Collections.unmodifiableList(messages);
+    }
+}
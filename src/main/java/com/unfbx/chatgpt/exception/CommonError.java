@@ -11,6 +11,8 @@ public enum CommonError implements IError {
     SYS_ERROR(500, "系统繁忙"),
     PARAM_ERROR(501, "参数异常"),
     RETRY_ERROR(502, "请求异常，请重试~"),
+    CONTEXT_LENGTH_EXCEEDED(503, "请求tokens数超过模型上下文长度"),
+    STREAM_CONSUMER_OVERFLOW(504, "流式输出消费过慢，缓冲队列已满"),
     //官方的错误码列表：https://platform.openai.com/docs/guides/error-codes/api-errors
     OPENAI_AUTHENTICATION_ERROR(401, "身份验证无效/提供的 API 密钥不正确/您必须是组织的成员才能使用 API"),
     OPENAI_LIMIT_ERROR(429 , "达到请求的速率限制/您超出了当前配额，请检查您的计划和帐单详细信息/发动机当前过载，请稍后重试"),
@@ -0,0 +1,304 @@
+package com.unfbx.chatgpt.sse;
+
+import com.unfbx.chatgpt.entity.chat.ChatChoice;
+import com.unfbx.chatgpt.entity.chat.ChatCompletionResponse;
+import com.unfbx.chatgpt.exception.BaseException;
+import com.unfbx.chatgpt.exception.CommonError;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Response;
+import okhttp3.sse.EventSource;
+import okhttp3.sse.EventSourceListener;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * 描述：以阻塞迭代器的方式读取流式输出
+ * <p>
+ * OkHttp读取线程把每个choice放入有界队列，队列满时暂停读取，调用方在自己的线程中按顺序取出，
+ * 适用于一个请求一个线程（包括虚拟线程）的同步代码。
+ * 读取完之前不再需要时调用 {@link #close()} 关闭sse连接，已经收到[DONE]时句柄状态为正常结束。
+ * 连接异常时 {@link #hasNext()} 抛出异常。
+ * <p>
+ * 迭代只能在一个线程中进行，{@link #close()} 可以在其他线程中调用，通过结束标记唤醒等待中的迭代线程。
+ * 调用方超过offerTimeoutMillis没有取出数据时关闭sse连接，取出已缓存的数据之后抛出
+ * {@link CommonError#STREAM_CONSUMER_OVERFLOW}，避免放弃迭代又没有关闭时一直占用读取线程。
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-23
+ */
+@Slf4j
+public class ChatChoiceIterator extends EventSourceListener implements Iterator<ChatChoice>, AutoCloseable {
+    /**
+     * 默认队列容量
+     */
+    public static final int DEFAULT_CAPACITY = 64;
+    /**
+     * 默认队列满时读取线程最长等待时间（毫秒）
+     */
+    public static final long DEFAULT_OFFER_TIMEOUT_MILLIS = 60_000;
+
+    private static final Object END = new Object();
+
+    private final BlockingQueue<Object> queue;
+
+    private final long offerTimeoutMillis;
+    /**
+     * 队列满时等待中的读取线程，关闭时中断
+     */
+    private Thread producer;
+
+    private final Object producerLock = new Object();
+
+    private volatile StreamHandle handle;
+
+    private volatile boolean closed;
+
+    private volatile RuntimeException error;
+
+    private final AtomicBoolean ended = new AtomicBoolean();
+
+    /**
+     * 只在迭代线程中读写
+     */
+    private ChatChoice next;
+    /**
+     * 只在迭代线程中读写
+     */
+    private boolean finished;
+
+    public ChatChoiceIterator() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity 队列容量
+     */
+    public ChatChoiceIterator(int capacity) {
+        this(capacity, DEFAULT_OFFER_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param capacity           队列容量
+     * @param offerTimeoutMillis 队列满时读取线程最长等待时间（毫秒）
+     */
+    public ChatChoiceIterator(int capacity, long offerTimeoutMillis) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.offerTimeoutMillis = offerTimeoutMillis;
+    }
+
+    /**
+     * 绑定请求句柄，关闭迭代器时取消请求
+     *
+     * @param handle 请求句柄
+     */
+    public void bind(@NotNull StreamHandle handle) {
+        this.handle = handle;
+        if (closed) {
+            handle.cancel();
+        }
+        //请求没有发出（例如参数序列化失败）时不会回调监听器，由句柄结束迭代
+        handle.getCompletion().whenComplete((v, t) -> {
+            if (Objects.nonNull(t) && handle.getStatus() == StreamHandle.Status.FAILED) {
+                finish(t instanceof RuntimeException ? (RuntimeException) t : new BaseException(String.valueOf(t.getMessage())));
+            }
+        });
+    }
+
+    /**
+     * 转换为content的Stream，关闭Stream时关闭sse连接
+     *
+     * @return delta中的content
+     */
+    public Stream<String> content() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(this::close)
+                .filter(choice -> Objects.nonNull(choice.getDelta()) && Objects.nonNull(choice.getDelta().getContent()))
+                .map(choice -> choice.getDelta().getContent());
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (Objects.nonNull(next)) {
+            return true;
+        }
+        if (finished) {
+            return false;
+        }
+        if (closed) {
+            finished = true;
+            return false;
+        }
+        Object item;
+        try {
+            //结束标记因为队列已满没有放入时，取完队列即结束
+            item = ended.get() ? queue.poll() : queue.take();
+            if (Objects.isNull(item)) {
+                item = END;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new BaseException("等待OpenAI流式输出时线程被中断");
+        }
+        if (item == END) {
+            finished = true;
+            if (Objects.nonNull(error)) {
+                throw error;
+            }
+            return false;
+        }
+        next = (ChatChoice) item;
+        return true;
+    }
+
+    @Override
+    public ChatChoice next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        ChatChoice choice = next;
+        next = null;
+        return choice;
+    }
+
+    /**
+     * 关闭sse连接，丢弃未读取的数据
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        StreamHandle current = this.handle;
+        if (Objects.nonNull(current)) {
+            //已经收到[DONE]，只是还没有回调onClosed，按正常结束处理
+            if (ended.get() && Objects.isNull(error)) {
+                current.stop();
+            } else {
+                current.cancel();
+            }
+        }
+        synchronized (producerLock) {
+            if (Objects.nonNull(producer)) {
+                producer.interrupt();
+            }
+        }
+        queue.clear();
+        //唤醒在其他线程中阻塞等待的hasNext
+        queue.offer(END);
+    }
+
+    @Override
+    public void onEvent(EventSource eventSource, String id, String type, String data) {
+        if (closed) {
+            eventSource.cancel();
+            return;
+        }
+        if (ChunkReader.isDone(data)) {
+            end();
+            return;
+        }
+        ChatCompletionResponse response;
+        try {
+            response = ChunkReader.read(data);
+        } catch (IOException e) {
+            log.error("OpenAI返回数据解析异常：{}", data);
+            eventSource.cancel();
+            finish(new UncheckedIOException(e));
+            return;
+        }
+        if (Objects.isNull(response.getChoices())) {
+            return;
+        }
+        for (ChatChoice choice : response.getChoices()) {
+            if (!put(choice)) {
+                if (!closed) {
+                    log.warn("OpenAI流式输出超过{}ms没有被读取，关闭连接", offerTimeoutMillis);
+                    finish(new BaseException(CommonError.STREAM_CONSUMER_OVERFLOW));
+                    eventSource.cancel();
+                }
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void onClosed(EventSource eventSource) {
+        end();
+    }
+
+    @Override
+    public void onFailure(EventSource eventSource, Throwable t, Response response) {
+        if (Objects.nonNull(t)) {
+            finish(t instanceof IOException ? new UncheckedIOException((IOException) t)
+                    : t instanceof RuntimeException ? (RuntimeException) t : new BaseException(String.valueOf(t.getMessage())));
+            return;
+        }
+        String msg = ErrorResponses.message(response);
+        log.error("OpenAI  sse连接异常：{}", msg);
+        finish(new BaseException(msg));
+    }
+
+    private void finish(RuntimeException e) {
+        if (!ended.get()) {
+            error = e;
+        }
+        end();
+    }
+
+    /**
+     * [DONE]之后还会回调onClosed，结束标记只放入一次。队列已满时不等待，迭代线程取完队列后结束
+     */
+    private void end() {
+        if (ended.compareAndSet(false, true)) {
+            queue.offer(END);
+        }
+    }
+
+    /**
+     * 队列满时阻塞读取线程，迭代器关闭时被中断
+     *
+     * @return 迭代器已经关闭或者等待超时返回false
+     */
+    private boolean put(ChatChoice choice) {
+        Thread current = Thread.currentThread();
+        synchronized (producerLock) {
+            if (closed) {
+                return false;
+            }
+            producer = current;
+        }
+        boolean offered;
+        try {
+            offered = queue.offer(choice, offerTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            offered = false;
+            if (!closed) {
+                current.interrupt();
+            }
+        } finally {
+            synchronized (producerLock) {
+                producer = null;
+            }
+        }
+        //关闭时的中断可能在offer返回之后才到达，清除中断状态，不影响OkHttp读取线程
+        if (closed && Thread.interrupted()) {
+            return false;
+        }
+        return offered && !closed;
+    }
+}
@@ -0,0 +1,183 @@
+package com.unfbx.chatgpt.sse;
+
+import com.unfbx.chatgpt.entity.chat.ChatChoice;
+import com.unfbx.chatgpt.entity.chat.ChatCompletionResponse;
+import com.unfbx.chatgpt.entity.chat.Message;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Response;
+import okhttp3.sse.EventSource;
+import okhttp3.sse.EventSourceListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * 描述：chat completion流式输出监听器
+ * <p>
+ * 使用共享的 {@link ChunkReader} 解析每个sse事件，回调delta，
+ * 并按choice的index拼接完整的回复，收到[DONE]时通过 {@link #onComplete(EventSource, List)} 返回。
+ * <p>
+ * 监听器保存了单次请求的状态，每次请求需要创建新的实例。
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-17
+ */
+@Slf4j
+public abstract class ChatCompletionEventSourceListener extends EventSourceListener {
+
+    /**
+     * 下标为choice的index
+     */
+    private final List<Assembler> assemblers = new ArrayList<>(1);
+
+    /**
+     * 收到一个delta
+     *
+     * @param eventSource sse
+     * @param choice      delta所属的choice，{@link ChatChoice#getDelta()} 为本次返回的增量内容
+     */
+    protected abstract void onDelta(EventSource eventSource, ChatChoice choice);
+
+    /**
+     * 收到[DONE]，返回完整的回复
+     *
+     * @param eventSource sse
+     * @param choices     按index排序，{@link ChatChoice#getMessage()} 为拼接后的完整消息
+     */
+    protected void onComplete(EventSource eventSource, List<ChatChoice> choices) {
+    }
+
+    /**
+     * 返回数据解析异常，默认忽略该事件
+     *
+     * @param eventSource sse
+     * @param data        sse事件数据
+     * @param e           异常
+     */
+    protected void onParseError(EventSource eventSource, String data, IOException e) {
+        log.error("OpenAI返回数据解析异常：{}", data, e);
+    }
+
+    @Override
+    public void onEvent(EventSource eventSource, String id, String type, String data) {
+        if (ChunkReader.isDone(data)) {
+            onComplete(eventSource, getChoices());
+            return;
+        }
+        ChatCompletionResponse response;
+        try {
+            response = ChunkReader.read(data);
+        } catch (IOException e) {
+            onParseError(eventSource, data, e);
+            return;
+        }
+        onResponse(eventSource, response);
+    }
+
+    /**
+     * 处理解析后的返回数据。{@link TokenAccountingEventSourceListener} 等包装监听器已经解析过时直接调用，
+     * 不再经过 {@link #onEvent(EventSource, String, String, String)}，子类需要处理每个delta时重写这个方法
+     *
+     * @param eventSource sse
+     * @param response    解析后的返回数据
+     */
+    protected void onResponse(EventSource eventSource, ChatCompletionResponse response) {
+        if (Objects.isNull(response.getChoices())) {
+            return;
+        }
+        for (ChatChoice choice : response.getChoices()) {
+            assembler((int) choice.getIndex()).append(choice);
+            onDelta(eventSource, choice);
+        }
+    }
+
+    @Override
+    public void onFailure(EventSource eventSource, Throwable t, Response response) {
+        if (Objects.isNull(response)) {
+            log.error("OpenAI  sse连接异常:{}", t);
+            eventSource.cancel();
+            return;
+        }
+        log.error("OpenAI  sse连接异常data：{}，异常：{}", ErrorResponses.message(response), t);
+        eventSource.cancel();
+    }
+
+    /**
+     * 截止目前拼接的回复，按index排序
+     *
+     * @return {@link ChatChoice#getMessage()} 为截止目前拼接的消息
+     */
+    public List<ChatChoice> getChoices() {
+        if (assemblers.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<ChatChoice> choices = new ArrayList<>(assemblers.size());
+        for (int i = 0; i < assemblers.size(); i++) {
+            Assembler assembler = assemblers.get(i);
+            if (Objects.nonNull(assembler)) {
+                choices.add(assembler.toChoice(i));
+            }
+        }
+        return choices;
+    }
+
+    /**
+     * 截止目前拼接的指定choice的回复
+     *
+     * @param index choice的index
+     * @return {@link ChatChoice#getMessage()} 为截止目前拼接的消息，没有收到该choice时返回null
+     */
+    public ChatChoice getChoice(int index) {
+        if (index < 0 || index >= assemblers.size() || Objects.isNull(assemblers.get(index))) {
+            return null;
+        }
+        return assemblers.get(index).toChoice(index);
+    }
+
+    private Assembler assembler(int index) {
+        while (assemblers.size() <= index) {
+            assemblers.add(null);
+        }
+        Assembler assembler = assemblers.get(index);
+        if (Objects.isNull(assembler)) {
+            assembler = new Assembler();
+            assemblers.set(index, assembler);
+        }
+        return assembler;
+    }
+
+    /**
+     * 拼接单个choice的回复
+     */
+    private static final class Assembler {
+        private String role;
+        private final StringBuilder content = new StringBuilder();
+        private String finishReason;
+
+        private void append(ChatChoice choice) {
+            Message delta = choice.getDelta();
+            if (Objects.nonNull(delta)) {
+                if (Objects.nonNull(delta.getRole())) {
+                    role = delta.getRole();
+                }
+                if (Objects.nonNull(delta.getContent())) {
+                    content.append(delta.getContent());
+                }
+            }
+            if (Objects.nonNull(choice.getFinishReason())) {
+                finishReason = choice.getFinishReason();
+            }
+        }
+
+        private ChatChoice toChoice(int index) {
+            ChatChoice choice = new ChatChoice();
+            choice.setIndex(index);
+            choice.setMessage(new Message(Objects.isNull(role) ? Message.Role.ASSISTANT.getName() : role, content.toString(), null));
+            choice.setFinishReason(finishReason);
+            return choice;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.unfbx.chatgpt.sse;
+
+import com.unfbx.chatgpt.entity.chat.ChatChoice;
+import okhttp3.sse.EventSource;
+
+/**
+ * 描述：单个choice的流式输出监听器，配合 {@link DemultiplexingEventSourceListener} 使用
+ * <p>
+ * n>1时每个choice对应一个独立的监听器，只收到自己index的delta。
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-24
+ */
+public abstract class ChoiceListener {
+
+    /**
+     * 收到一个delta
+     *
+     * @param eventSource sse
+     * @param choice      {@link ChatChoice#getDelta()} 为本次返回的增量内容
+     */
+    public abstract void onDelta(EventSource eventSource, ChatChoice choice);
+
+    /**
+     * 当前choice结束
+     *
+     * @param eventSource sse
+     * @param choice      {@link ChatChoice#getMessage()} 为拼接后的完整消息，{@link ChatChoice#getFinishReason()} 为结束原因，
+     *                    收到[DONE]时仍未收到finish_reason的为null
+     */
+    public void onFinish(EventSource eventSource, ChatChoice choice) {
+    }
+
+    /**
+     * 当前choice结束前连接异常
+     *
+     * @param eventSource sse
+     * @param choice      截止异常时拼接的消息
+     * @param t           异常，可能为null
+     */
+    public void onFailure(EventSource eventSource, ChatChoice choice, Throwable t) {
+    }
+}
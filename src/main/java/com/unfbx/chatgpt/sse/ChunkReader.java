@@ -0,0 +1,51 @@
+package com.unfbx.chatgpt.sse;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.unfbx.chatgpt.entity.chat.ChatCompletionResponse;
+
+import java.io.IOException;
+
+/**
+ * 描述：流式返回数据解析
+ * <p>
+ * 所有监听器共用一个线程安全的ObjectReader，不需要每个事件创建ObjectMapper。
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-17
+ */
+public final class ChunkReader {
+    /**
+     * 流式返回结束标识
+     */
+    public static final String DONE = "[DONE]";
+
+    private static final ObjectReader reader = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .readerFor(ChatCompletionResponse.class);
+
+    private ChunkReader() {
+    }
+
+    /**
+     * 是否是结束标识
+     *
+     * @param data sse事件数据
+     * @return
+     */
+    public static boolean isDone(String data) {
+        return DONE.equals(data);
+    }
+
+    /**
+     * 解析chat completion流式返回的数据
+     *
+     * @param data sse事件数据
+     * @return
+     * @throws IOException
+     */
+    public static ChatCompletionResponse read(String data) throws IOException {
+        return reader.readValue(data);
+    }
+}
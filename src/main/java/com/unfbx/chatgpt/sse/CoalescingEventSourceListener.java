@@ -0,0 +1,324 @@
+package com.unfbx.chatgpt.sse;
+
+import com.unfbx.chatgpt.entity.chat.ChatChoice;
+import com.unfbx.chatgpt.entity.chat.Message;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Response;
+import okhttp3.sse.EventSource;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 描述：按时间窗口合并delta的流式输出监听器
+ * <p>
+ * OpenAI每个token返回一个sse事件，逐个转发给websocket、移动端时每个token都是一次写操作。
+ * 这个监听器把同一个choice的delta先拼接起来，满足以下任一条件时通过 {@link #onBatch(EventSource, ChatChoice)} 一次性返回：
+ * <ul>
+ *     <li>距离本批第一个delta到达超过时间窗口</li>
+ *     <li>本批content达到字符数上限</li>
+ *     <li>收到finish_reason、[DONE]或者连接结束</li>
+ * </ul>
+ * 时间窗口由共享的定时线程计时，窗口结束时即使没有新的delta到达也会返回，每次返回之后按剩余未返回的delta重新计时。
+ * 指定executor时，定时线程把合并任务提交给executor，本身不执行业务代码；
+ * 没有指定executor时，定时线程直接合并并回调onBatch，onBatch需要尽快返回，耗时的处理请指定executor。
+ * onBatch在锁外执行，同一个监听器的回调不会并发，并且按顺序返回。
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-22
+ */
+@Slf4j
+public abstract class CoalescingEventSourceListener extends ChatCompletionEventSourceListener {
+    /**
+     * 默认时间窗口（毫秒）
+     */
+    public static final long DEFAULT_WINDOW_MILLIS = 30;
+    /**
+     * 默认单批content字符数上限
+     */
+    public static final int DEFAULT_MAX_CHARS = 256;
+    /**
+     * 窗口结束时执行合并的线程池，为null时在定时线程中合并
+     */
+    private final Executor executor;
+
+    private final long windowNanos;
+
+    private final int maxChars;
+
+    private final Object lock = new Object();
+    /**
+     * 下标为choice的index
+     */
+    private final List<Batch> batches = new ArrayList<>(1);
+    /**
+     * 已经合并、等待回调的批次，按顺序回调
+     */
+    private final Queue<ChatChoice> ready = new ArrayDeque<>();
+    /**
+     * 保证同一时间只有一个线程回调onBatch
+     */
+    private final AtomicInteger wip = new AtomicInteger();
+
+    private ScheduledFuture<?> timer;
+    /**
+     * 当前定时任务的截止时间
+     */
+    private long timerDeadline;
+
+    private volatile EventSource eventSource;
+
+    public CoalescingEventSourceListener() {
+        this(DEFAULT_WINDOW_MILLIS, DEFAULT_MAX_CHARS);
+    }
+
+    /**
+     * 窗口结束时在共享的定时线程中合并
+     *
+     * @param windowMillis 时间窗口（毫秒）
+     * @param maxChars     单批content字符数上限
+     */
+    public CoalescingEventSourceListener(long windowMillis, int maxChars) {
+        this(null, windowMillis, maxChars);
+    }
+
+    /**
+     * @param executor     窗口结束时执行合并和onBatch的线程池，为null时在共享的定时线程中执行
+     * @param windowMillis 时间窗口（毫秒）
+     * @param maxChars     单批content字符数上限
+     */
+    public CoalescingEventSourceListener(Executor executor, long windowMillis, int maxChars) {
+        if (windowMillis <= 0 || maxChars <= 0) {
+            throw new IllegalArgumentException("windowMillis and maxChars must be positive");
+        }
+        this.executor = executor;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * 返回一批合并后的delta
+     *
+     * @param eventSource sse
+     * @param batch       {@link ChatChoice#getDelta()} 为合并后的增量内容，最后一批带有finish_reason
+     */
+    protected abstract void onBatch(EventSource eventSource, ChatChoice batch);
+
+    @Override
+    protected final void onDelta(EventSource eventSource, ChatChoice choice) {
+        this.eventSource = eventSource;
+        synchronized (lock) {
+            long now = System.nanoTime();
+            Batch batch = batch((int) choice.getIndex());
+            batch.append(choice, now);
+            if (Objects.nonNull(batch.finishReason) || batch.content.length() >= maxChars) {
+                take(batch);
+            }
+            rearm(now);
+        }
+        emit();
+    }
+
+    @Override
+    public void onEvent(EventSource eventSource, String id, String type, String data) {
+        if (ChunkReader.isDone(data)) {
+            flushAll();
+        }
+        super.onEvent(eventSource, id, type, data);
+    }
+
+    @Override
+    public void onClosed(EventSource eventSource) {
+        flushAll();
+    }
+
+    @Override
+    public void onFailure(EventSource eventSource, Throwable t, Response response) {
+        flushAll();
+        super.onFailure(eventSource, t, response);
+    }
+
+    /**
+     * 立即返回所有未返回的delta
+     */
+    public void flushAll() {
+        synchronized (lock) {
+            for (Batch batch : batches) {
+                if (Objects.nonNull(batch)) {
+                    take(batch);
+                }
+            }
+            cancelTimer();
+        }
+        emit();
+    }
+
+    /**
+     * 合并一个批次放入待回调队列，需要持有锁
+     */
+    private void take(Batch batch) {
+        if (batch.content.length() == 0 && Objects.isNull(batch.finishReason)) {
+            return;
+        }
+        ready.add(batch.toChoice());
+        batch.reset();
+    }
+
+    /**
+     * 按最早的未返回delta重新计时，需要持有锁
+     */
+    private void rearm(long now) {
+        long since = Long.MAX_VALUE;
+        for (Batch batch : batches) {
+            if (Objects.nonNull(batch) && batch.content.length() > 0 && batch.since - since < 0) {
+                since = batch.since;
+            }
+        }
+        if (since == Long.MAX_VALUE) {
+            cancelTimer();
+            return;
+        }
+        long deadline = since + windowNanos;
+        if (Objects.nonNull(timer) && deadline == timerDeadline) {
+            return;
+        }
+        cancelTimer();
+        timerDeadline = deadline;
+        timer = SchedulerHolder.scheduler.schedule(this::submitFlush, Math.max(0, deadline - now), TimeUnit.NANOSECONDS);
+    }
+
+    private void cancelTimer() {
+        if (Objects.nonNull(timer)) {
+            timer.cancel(false);
+            timer = null;
+        }
+    }
+
+    /**
+     * 有executor时定时线程只负责把合并任务提交给executor，没有时直接合并
+     */
+    private void submitFlush() {
+        if (Objects.isNull(executor)) {
+            flushAll();
+            return;
+        }
+        try {
+            executor.execute(this::flushAll);
+        } catch (RejectedExecutionException e) {
+            log.warn("合并任务被拒绝，等待下一个delta或者连接结束时返回", e);
+        }
+    }
+
+    /**
+     * 在锁外按顺序回调onBatch
+     */
+    private void emit() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        for (; ; ) {
+            for (; ; ) {
+                ChatChoice choice;
+                synchronized (lock) {
+                    choice = ready.poll();
+                }
+                if (Objects.isNull(choice)) {
+                    break;
+                }
+                try {
+                    onBatch(eventSource, choice);
+                } catch (RuntimeException e) {
+                    log.error("onBatch执行异常", e);
+                }
+            }
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                break;
+            }
+        }
+    }
+
+    private Batch batch(int index) {
+        while (batches.size() <= index) {
+            batches.add(null);
+        }
+        Batch batch = batches.get(index);
+        if (Objects.isNull(batch)) {
+            batch = new Batch(index);
+            batches.set(index, batch);
+        }
+        return batch;
+    }
+
+    /**
+     * 单个choice未返回的delta
+     */
+    private static final class Batch {
+        private final int index;
+        private String role;
+        private final StringBuilder content = new StringBuilder();
+        private String finishReason;
+        /**
+         * 本批第一个delta到达的时间
+         */
+        private long since;
+
+        private Batch(int index) {
+            this.index = index;
+        }
+
+        private void append(ChatChoice choice, long now) {
+            Message delta = choice.getDelta();
+            if (Objects.nonNull(delta)) {
+                if (Objects.nonNull(delta.getRole())) {
+                    role = delta.getRole();
+                }
+                if (Objects.nonNull(delta.getContent()) && !delta.getContent().isEmpty()) {
+                    if (content.length() == 0) {
+                        since = now;
+                    }
+                    content.append(delta.getContent());
+                }
+            }
+            if (Objects.nonNull(choice.getFinishReason())) {
+                finishReason = choice.getFinishReason();
+            }
+        }
+
+        private ChatChoice toChoice() {
+            ChatChoice choice = new ChatChoice();
+            choice.setIndex(index);
+            choice.setDelta(new Message(Objects.isNull(role) ? Message.Role.ASSISTANT.getName() : role, content.toString(), null));
+            choice.setFinishReason(finishReason);
+            return choice;
+        }
+
+        private void reset() {
+            content.setLength(0);
+            finishReason = null;
+        }
+    }
+
+    /**
+     * 默认共享的定时线程，首次使用时创建
+     */
+    private static final class SchedulerHolder {
+        private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "openai-delta-coalescing");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
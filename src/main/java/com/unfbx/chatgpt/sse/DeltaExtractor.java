@@ -0,0 +1,130 @@
+package com.unfbx.chatgpt.sse;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.CharBuffer;
+
+/**
+ * 描述：只解析流式返回中的 choices[].delta.content、delta.role 和 finish_reason
+ * <p>
+ * 使用Jackson的流式JsonParser按token读取，不绑定 ChatCompletionResponse、ChatChoice、Message，
+ * content直接从解析器的字符缓冲区追加到调用方的StringBuilder、Writer等，每个token几乎不产生垃圾对象。
+ * 所有choice的content都会追加到同一个Appendable，适用于n=1的请求。
+ * <p>
+ * 实例保存了最近一次的finish_reason，每个流使用一个实例，非线程安全。
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-21
+ */
+public class DeltaExtractor {
+
+    private static final JsonFactory factory = new JsonFactory();
+    /**
+     * 最近一次收到的finish_reason，未结束时为null
+     */
+    @Getter
+    private String finishReason;
+    /**
+     * 最近一次解析的事件中的delta.role，没有时为null
+     */
+    @Getter
+    private String role;
+
+    /**
+     * 解析一个sse事件
+     *
+     * @param data sse事件数据
+     * @param out  content追加的目标
+     * @return 本次追加的字符数
+     * @throws IOException
+     */
+    public int extract(@NotNull String data, @NotNull Appendable out) throws IOException {
+        try (JsonParser parser = factory.createParser(data)) {
+            return extract(parser, out);
+        }
+    }
+
+    /**
+     * 解析一个sse事件
+     *
+     * @param data sse事件数据，例如 {@link okio.Buffer#inputStream()}
+     * @param out  content追加的目标
+     * @return 本次追加的字符数
+     * @throws IOException
+     */
+    public int extract(@NotNull InputStream data, @NotNull Appendable out) throws IOException {
+        try (JsonParser parser = factory.createParser(data)) {
+            return extract(parser, out);
+        }
+    }
+
+    private int extract(JsonParser parser, Appendable out) throws IOException {
+        int appended = 0;
+        role = null;
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return 0;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("choices".equals(field) && value == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    appended += choice(parser, out);
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return appended;
+    }
+
+    private int choice(JsonParser parser, Appendable out) throws IOException {
+        int appended = 0;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("delta".equals(field) && value == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String deltaField = parser.getCurrentName();
+                    JsonToken deltaValue = parser.nextToken();
+                    if ("content".equals(deltaField) && deltaValue == JsonToken.VALUE_STRING) {
+                        appended += append(parser, out);
+                    } else if ("role".equals(deltaField) && deltaValue == JsonToken.VALUE_STRING) {
+                        role = parser.getText();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else if ("finish_reason".equals(field) && value == JsonToken.VALUE_STRING) {
+                finishReason = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return appended;
+    }
+
+    /**
+     * 直接从解析器的字符缓冲区追加，不创建String
+     */
+    private static int append(JsonParser parser, Appendable out) throws IOException {
+        char[] chars = parser.getTextCharacters();
+        int offset = parser.getTextOffset();
+        int length = parser.getTextLength();
+        if (out instanceof StringBuilder) {
+            ((StringBuilder) out).append(chars, offset, length);
+        } else if (out instanceof Writer) {
+            ((Writer) out).write(chars, offset, length);
+        } else {
+            out.append(CharBuffer.wrap(chars, offset, length));
+        }
+        return length;
+    }
+}
@@ -0,0 +1,73 @@
+package com.unfbx.chatgpt.sse;
+
+import okhttp3.sse.EventSource;
+import okio.Buffer;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * 描述：只提取delta.content的流式输出监听器
+ * <p>
+ * 配合 {@link com.unfbx.chatgpt.OpenAiStreamClient#streamChatCompletion(com.unfbx.chatgpt.entity.chat.ChatCompletion, FrameListener)} 使用，
+ * 每个帧直接从字节解析，content追加到调用方提供的Appendable，不创建ChatCompletionResponse对象。
+ * 回调在OkHttp的读取线程中执行。
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-21
+ */
+public class DeltaFrameListener extends FrameListener {
+
+    private final DeltaExtractor extractor = new DeltaExtractor();
+
+    private final Appendable out;
+
+    private boolean finished;
+
+    /**
+     * @param out content追加的目标，例如StringBuilder
+     */
+    public DeltaFrameListener(@NotNull Appendable out) {
+        this.out = out;
+    }
+
+    /**
+     * content追加之后回调
+     *
+     * @param eventSource sse
+     * @param length      本次追加的字符数
+     */
+    protected void onContent(EventSource eventSource, int length) {
+    }
+
+    /**
+     * 收到finish_reason
+     *
+     * @param eventSource  sse
+     * @param finishReason 结束原因
+     */
+    protected void onFinish(EventSource eventSource, String finishReason) {
+    }
+
+    @Override
+    public void onData(EventSource eventSource, Buffer data) throws IOException {
+        int length = extractor.extract(data.inputStream(), out);
+        if (length > 0) {
+            onContent(eventSource, length);
+        }
+        if (!finished && Objects.nonNull(extractor.getFinishReason())) {
+            finished = true;
+            onFinish(eventSource, extractor.getFinishReason());
+        }
+    }
+
+    /**
+     * 结束原因，未结束时为null
+     *
+     * @return
+     */
+    public String getFinishReason() {
+        return extractor.getFinishReason();
+    }
+}
@@ -0,0 +1,105 @@
+package com.unfbx.chatgpt.sse;
+
+import com.unfbx.chatgpt.entity.chat.ChatChoice;
+import okhttp3.Response;
+import okhttp3.sse.EventSource;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.IntFunction;
+
+/**
+ * 描述：按choice拆分n>1的流式输出
+ * <p>
+ * n>1时同一个sse流中交替返回各个choice的delta，这个监听器按index把delta分发给各自的 {@link ChoiceListener}，
+ * 每个choice独立拼接回复、独立结束，一次请求生成多个候选回复，不需要发起n个并行请求。
+ * 监听器在收到某个index的第一个delta时通过factory创建。
+ * <p>
+ * 监听器保存了单次请求的状态，每次请求需要创建新的实例。
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-24
+ */
+public class DemultiplexingEventSourceListener extends ChatCompletionEventSourceListener {
+
+    private final IntFunction<ChoiceListener> factory;
+    /**
+     * 下标为choice的index
+     */
+    private final List<Slot> slots = new ArrayList<>();
+
+    /**
+     * @param factory 根据choice的index创建监听器
+     */
+    public DemultiplexingEventSourceListener(@NotNull IntFunction<ChoiceListener> factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    protected void onDelta(EventSource eventSource, ChatChoice choice) {
+        int index = (int) choice.getIndex();
+        Slot slot = slot(index);
+        if (slot.finished) {
+            return;
+        }
+        slot.listener.onDelta(eventSource, choice);
+        if (Objects.nonNull(choice.getFinishReason())) {
+            slot.finished = true;
+            slot.listener.onFinish(eventSource, getChoice(index));
+        }
+    }
+
+    @Override
+    protected void onComplete(EventSource eventSource, List<ChatChoice> choices) {
+        for (ChatChoice choice : choices) {
+            Slot slot = slots.get((int) choice.getIndex());
+            if (!slot.finished) {
+                slot.finished = true;
+                slot.listener.onFinish(eventSource, choice);
+            }
+        }
+    }
+
+    /**
+     * 没有收到[DONE]就正常关闭的连接，未结束的choice同样结束
+     */
+    @Override
+    public void onClosed(EventSource eventSource) {
+        onComplete(eventSource, getChoices());
+    }
+
+    @Override
+    public void onFailure(EventSource eventSource, Throwable t, Response response) {
+        for (int i = 0; i < slots.size(); i++) {
+            Slot slot = slots.get(i);
+            if (Objects.nonNull(slot) && !slot.finished) {
+                slot.finished = true;
+                slot.listener.onFailure(eventSource, getChoice(i), t);
+            }
+        }
+        super.onFailure(eventSource, t, response);
+    }
+
+    private Slot slot(int index) {
+        while (slots.size() <= index) {
+            slots.add(null);
+        }
+        Slot slot = slots.get(index);
+        if (Objects.isNull(slot)) {
+            slot = new Slot(factory.apply(index));
+            slots.set(index, slot);
+        }
+        return slot;
+    }
+
+    private static final class Slot {
+        private final ChoiceListener listener;
+        private boolean finished;
+
+        private Slot(ChoiceListener listener) {
+            this.listener = listener;
+        }
+    }
+}
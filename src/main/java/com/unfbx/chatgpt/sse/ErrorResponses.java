@@ -0,0 +1,61 @@
+package com.unfbx.chatgpt.sse;
+
+import com.unfbx.chatgpt.exception.CommonError;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * 描述：sse连接异常时读取OpenAI返回的错误响应
+ * <p>
+ * onFailure回调返回后OkHttp会关闭响应，响应体只能在回调中读取一次。
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-26
+ */
+public final class ErrorResponses {
+
+    private ErrorResponses() {
+    }
+
+    /**
+     * 读取错误信息
+     *
+     * @param response 错误响应，可以为null
+     * @return 响应体，没有响应时返回 {@link CommonError#RETRY_ERROR}，没有响应体或者读取失败时返回响应行
+     */
+    public static String message(Response response) {
+        if (Objects.isNull(response)) {
+            return CommonError.RETRY_ERROR.msg();
+        }
+        ResponseBody body = response.body();
+        if (Objects.isNull(body)) {
+            return response.toString();
+        }
+        try {
+            return body.string();
+        } catch (IOException e) {
+            return response.toString();
+        }
+    }
+
+    /**
+     * 读取响应体并替换为内存中的副本，回调返回之后（例如在其他线程中）仍然可以读取
+     *
+     * @param response 错误响应，可以为null
+     * @return 响应体已经读取的响应，读取失败时返回原响应
+     */
+    public static Response buffer(Response response) {
+        if (Objects.isNull(response) || Objects.isNull(response.body())) {
+            return response;
+        }
+        ResponseBody body = response.body();
+        try {
+            return response.newBuilder().body(ResponseBody.create(body.contentType(), body.string())).build();
+        } catch (IOException e) {
+            return response;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.unfbx.chatgpt.sse;
+
+import com.unfbx.chatgpt.exception.BaseException;
+import com.unfbx.chatgpt.exception.CommonError;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Response;
+import okhttp3.sse.EventSource;
+import okhttp3.sse.EventSourceListener;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 描述：通过有界队列把sse事件交给业务线程池处理
+ * <p>
+ * 监听器的回调默认在OkHttp的读取线程中执行，业务处理慢（例如websocket写阻塞）会拖慢读取，
+ * 大量流同时变慢时会占满读取线程。这个监听器包装业务监听器，读取线程只负责把事件放入每个流独立的有界队列，
+ * 由executor按顺序回调业务监听器，同一个流的回调不会并发。
+ * 队列满时的处理方式见 {@link OverflowPolicy}。
+ * <p>
+ * onOpen、onClosed、onFailure不占用队列容量，任何策略下都不会被丢弃：onOpen最先回调，
+ * onClosed、onFailure在队列中的事件全部回调之后执行。
+ * 线程池拒绝执行时关闭sse连接，在当前线程回调业务监听器的onFailure，业务监听器总能收到一次结束回调。
+ * <p>
+ * 需要从其他线程关闭连接时调用 {@link #cancel()}，会同时唤醒 {@link OverflowPolicy#BLOCK} 策略下等待队列空位的读取线程。
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-23
+ */
+@Slf4j
+public class ExecutorEventSourceListener extends EventSourceListener {
+
+    public enum OverflowPolicy {
+        /**
+         * 阻塞读取线程直到队列有空位，由TCP流控把背压传递到服务端
+         */
+        BLOCK,
+        /**
+         * 丢弃最早的未处理事件
+         */
+        DROP_OLDEST,
+        /**
+         * 关闭sse连接，业务监听器收到onFailure
+         */
+        CANCEL,
+    }
+
+    /**
+     * 默认队列容量
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+    /**
+     * 单次调度最多处理的事件数，处理完重新提交，避免一个流长期占用线程
+     */
+    private static final int MAX_DRAIN = 64;
+    /**
+     * BLOCK策略下等待队列空位时，检查连接是否已经取消的间隔
+     */
+    private static final long BLOCK_CHECK_MILLIS = 100;
+
+    private final EventSourceListener delegate;
+
+    private final Executor executor;
+
+    private final BlockingQueue<Runnable> queue;
+
+    private final OverflowPolicy policy;
+
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    private final AtomicBoolean terminated = new AtomicBoolean();
+    /**
+     * onOpen，回调之后置为null
+     */
+    private volatile Runnable open;
+    /**
+     * onClosed或者onFailure
+     */
+    private volatile Runnable terminal;
+    /**
+     * 丢弃的事件数
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile EventSource eventSource;
+    /**
+     * 已经取消，不再接收新的事件
+     */
+    private volatile boolean cancelled;
+
+    @Getter
+    private volatile boolean overflowed;
+
+    public ExecutorEventSourceListener(@NotNull EventSourceListener delegate, @NotNull Executor executor) {
+        this(delegate, executor, DEFAULT_CAPACITY, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * @param delegate 业务监听器
+     * @param executor 执行业务回调的线程池
+     * @param capacity 队列容量
+     * @param policy   队列满时的处理方式
+     */
+    public ExecutorEventSourceListener(@NotNull EventSourceListener delegate, @NotNull Executor executor, int capacity,
+                                       @NotNull OverflowPolicy policy) {
+        this.delegate = delegate;
+        this.executor = executor;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+    }
+
+    /**
+     * 队列满时丢弃的事件数，只有 {@link OverflowPolicy#DROP_OLDEST} 会丢弃
+     *
+     * @return
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * 关闭sse连接，丢弃队列中未处理的事件，唤醒等待队列空位的读取线程。
+     * 业务监听器随后收到OkHttp回调的onFailure
+     */
+    public void cancel() {
+        cancelled = true;
+        queue.clear();
+        EventSource source = this.eventSource;
+        if (Objects.nonNull(source)) {
+            source.cancel();
+        }
+    }
+
+    @Override
+    public void onOpen(EventSource eventSource, Response response) {
+        this.eventSource = eventSource;
+        open = () -> delegate.onOpen(eventSource, response);
+        schedule();
+    }
+
+    @Override
+    public void onEvent(EventSource eventSource, String id, String type, String data) {
+        if (cancelled) {
+            return;
+        }
+        this.eventSource = eventSource;
+        enqueue(eventSource, () -> delegate.onEvent(eventSource, id, type, data));
+    }
+
+    @Override
+    public void onClosed(EventSource eventSource) {
+        terminate(() -> delegate.onClosed(eventSource));
+    }
+
+    @Override
+    public void onFailure(EventSource eventSource, Throwable t, Response response) {
+        //CANCEL策略主动关闭连接之后OkHttp回调的onFailure不再通知业务监听器
+        if (overflowed) {
+            return;
+        }
+        //回调返回后OkHttp会关闭响应，异步回调之前先读取响应体
+        Response buffered = ErrorResponses.buffer(response);
+        terminate(() -> delegate.onFailure(eventSource, t, buffered));
+    }
+
+    private void enqueue(EventSource eventSource, Runnable task) {
+        switch (policy) {
+            case BLOCK:
+                try {
+                    //限时等待，取消之后不再等待业务线程腾出空位
+                    while (!queue.offer(task, BLOCK_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                        if (cancelled) {
+                            return;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancel();
+                    return;
+                }
+                break;
+            case DROP_OLDEST:
+                while (!queue.offer(task)) {
+                    if (Objects.nonNull(queue.poll())) {
+                        dropped.incrementAndGet();
+                    }
+                }
+                break;
+            default:
+                if (!queue.offer(task)) {
+                    overflowed = true;
+                    cancelled = true;
+                    log.warn("OpenAI sse事件队列已满，关闭连接");
+                    eventSource.cancel();
+                    terminate(() -> delegate.onFailure(eventSource, new BaseException(CommonError.STREAM_CONSUMER_OVERFLOW), null));
+                    return;
+                }
+        }
+        schedule();
+    }
+
+    private void terminate(Runnable task) {
+        if (Objects.isNull(terminal)) {
+            terminal = task;
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        if (draining.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                //不重置draining，之后的事件不再提交
+                log.error("OpenAI sse事件提交线程池失败，关闭连接", e);
+                reject(e);
+            }
+        }
+    }
+
+    /**
+     * 线程池拒绝执行，关闭连接并在当前线程回调onFailure
+     *
+     * @param e 线程池拒绝的异常
+     */
+    private void reject(RejectedExecutionException e) {
+        cancel();
+        open = null;
+        if (Objects.isNull(terminal)) {
+            terminal = () -> {
+            };
+        }
+        if (terminated.compareAndSet(false, true)) {
+            run(() -> delegate.onFailure(eventSource, e, null));
+        }
+    }
+
+    private void drain() {
+        Runnable first = open;
+        if (Objects.nonNull(first)) {
+            open = null;
+            run(first);
+        }
+        Runnable task;
+        int count = 0;
+        while (count < MAX_DRAIN && Objects.nonNull(task = queue.poll())) {
+            run(task);
+            count++;
+        }
+        //先读取terminal再判断onOpen和队列，保证terminal之前放入的事件已经可见
+        Runnable last = terminal;
+        if (Objects.nonNull(last) && Objects.isNull(open) && queue.isEmpty() && terminated.compareAndSet(false, true)) {
+            run(last);
+        }
+        draining.set(false);
+        if (Objects.nonNull(open) || !queue.isEmpty() || (Objects.nonNull(terminal) && !terminated.get())) {
+            schedule();
+        }
+    }
+
+    private void run(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            log.error("OpenAI sse事件处理异常", e);
+        }
+    }
+}
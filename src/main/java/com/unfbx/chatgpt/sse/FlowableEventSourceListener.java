@@ -0,0 +1,270 @@
+package com.unfbx.chatgpt.sse;
+
+import com.unfbx.chatgpt.entity.chat.ChatCompletionResponse;
+import com.unfbx.chatgpt.exception.BaseException;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Response;
+import okhttp3.sse.EventSource;
+import okhttp3.sse.EventSourceListener;
+import org.jetbrains.annotations.NotNull;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 描述：把sse事件转发给Reactive Streams的订阅者
+ * <p>
+ * 解析后的事件先放入有界队列，由下游的request(n)驱动从队列中取出并回调onNext。
+ * 队列已满时OkHttp读取线程等待下游request腾出空间，不再继续读取响应，
+ * 由TCP流控把背压传递到服务端，不会在内存中无限堆积数据，也不会空转等待。
+ * 下游取消订阅时关闭sse连接并唤醒等待中的读取线程。
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-16
+ */
+@Slf4j
+public class FlowableEventSourceListener extends EventSourceListener implements Subscription {
+    /**
+     * 默认的队列容量
+     */
+    public static final int DEFAULT_CAPACITY = 128;
+
+    private final Subscriber<? super ChatCompletionResponse> downstream;
+
+    private final Queue<ChatCompletionResponse> queue;
+
+    private final AtomicLong requested = new AtomicLong();
+    /**
+     * 保证同一时间只有一个线程回调下游
+     */
+    private final AtomicInteger wip = new AtomicInteger();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notFull = lock.newCondition();
+
+    private volatile EventSource eventSource;
+
+    private volatile boolean done;
+
+    private volatile Throwable error;
+
+    private volatile boolean cancelled;
+
+    public FlowableEventSourceListener(@NotNull Subscriber<? super ChatCompletionResponse> downstream) {
+        this(downstream, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param downstream 下游订阅者
+     * @param capacity   队列容量，下游没有request时最多缓存的事件数
+     */
+    public FlowableEventSourceListener(@NotNull Subscriber<? super ChatCompletionResponse> downstream, int capacity) {
+        this.downstream = downstream;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * 绑定sse连接，下游已经取消时直接关闭连接
+     *
+     * @param eventSource sse
+     */
+    public void bind(@NotNull EventSource eventSource) {
+        this.eventSource = eventSource;
+        if (cancelled) {
+            eventSource.cancel();
+        }
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            cancel();
+            downstream.onError(new IllegalArgumentException("request(n) n must be positive, but was " + n));
+            return;
+        }
+        for (; ; ) {
+            long current = requested.get();
+            long next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            if (requested.compareAndSet(current, next)) {
+                break;
+            }
+        }
+        drain();
+    }
+
+    @Override
+    public void cancel() {
+        if (cancelled) {
+            return;
+        }
+        cancelled = true;
+        EventSource current = this.eventSource;
+        if (Objects.nonNull(current)) {
+            current.cancel();
+        }
+        signalNotFull();
+        if (wip.getAndIncrement() == 0) {
+            queue.clear();
+        }
+    }
+
+    @Override
+    public void onEvent(EventSource eventSource, String id, String type, String data) {
+        if (cancelled) {
+            eventSource.cancel();
+            return;
+        }
+        if (ChunkReader.isDone(data)) {
+            done = true;
+            drain();
+            return;
+        }
+        ChatCompletionResponse response;
+        try {
+            response = ChunkReader.read(data);
+        } catch (IOException e) {
+            log.error("OpenAI返回数据解析异常：{}", data);
+            eventSource.cancel();
+            error(e);
+            return;
+        }
+        if (!offer(response)) {
+            eventSource.cancel();
+            return;
+        }
+        drain();
+    }
+
+    @Override
+    public void onClosed(EventSource eventSource) {
+        done = true;
+        drain();
+    }
+
+    @Override
+    public void onFailure(EventSource eventSource, Throwable t, Response response) {
+        if (Objects.nonNull(t)) {
+            error(t);
+            return;
+        }
+        String msg = ErrorResponses.message(response);
+        log.error("OpenAI  sse连接异常：{}", msg);
+        error(new BaseException(msg));
+    }
+
+    /**
+     * 放入队列，队列已满时等待下游request
+     *
+     * @return 下游已经取消或者读取线程被中断时返回false
+     */
+    private boolean offer(ChatCompletionResponse response) {
+        if (queue.offer(response)) {
+            return true;
+        }
+        lock.lock();
+        try {
+            while (!queue.offer(response)) {
+                if (cancelled) {
+                    return false;
+                }
+                notFull.await();
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signalNotFull() {
+        lock.lock();
+        try {
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 队列中的事件先全部回调，再传递异常
+     */
+    private void error(Throwable t) {
+        if (done) {
+            return;
+        }
+        error = t;
+        done = true;
+        drain();
+    }
+
+    /**
+     * 按下游request的数量从队列中取出事件
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        for (; ; ) {
+            long r = requested.get();
+            long emitted = 0;
+            while (emitted != r) {
+                if (cancelled) {
+                    queue.clear();
+                    return;
+                }
+                boolean terminated = done;
+                ChatCompletionResponse response = queue.poll();
+                if (terminated && Objects.isNull(response)) {
+                    terminate();
+                    return;
+                }
+                if (Objects.isNull(response)) {
+                    break;
+                }
+                downstream.onNext(response);
+                emitted++;
+            }
+            if (cancelled) {
+                queue.clear();
+                return;
+            }
+            if (emitted == r && done && queue.isEmpty()) {
+                terminate();
+                return;
+            }
+            if (emitted != 0) {
+                if (r != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+                signalNotFull();
+            }
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                break;
+            }
+        }
+    }
+
+    private void terminate() {
+        cancelled = true;
+        Throwable t = error;
+        if (Objects.nonNull(t)) {
+            downstream.onError(t);
+        } else {
+            downstream.onComplete();
+        }
+    }
+}
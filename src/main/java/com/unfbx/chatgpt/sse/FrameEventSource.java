@@ -0,0 +1,123 @@
+package com.unfbx.chatgpt.sse;
+
+import okhttp3.*;
+import okhttp3.sse.EventSource;
+import okio.AsyncTimeout;
+import okio.Buffer;
+import okio.Timeout;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 描述：使用 {@link SseFrameReader} 读取响应的sse连接，替代okhttp-sse的RealEventSource
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-20
+ */
+public final class FrameEventSource implements EventSource, Callback {
+
+    private static final ResponseBody EMPTY_BODY = ResponseBody.create(null, new byte[0]);
+
+    private final Request request;
+
+    private final FrameListener listener;
+    /**
+     * 原样转发的目标，可以为null
+     */
+    private final OutputStream relay;
+
+    private Call call;
+
+    private FrameEventSource(Request request, FrameListener listener, OutputStream relay) {
+        this.request = request.newBuilder().header("Accept", "text/event-stream").build();
+        this.listener = listener;
+        this.relay = relay;
+    }
+
+    /**
+     * 创建连接并开始读取
+     *
+     * @param client   OkHttpClient
+     * @param request  请求
+     * @param listener 监听器
+     * @return
+     */
+    public static FrameEventSource connect(@NotNull OkHttpClient client, @NotNull Request request, @NotNull FrameListener listener) {
+        return connect(client, request, listener, null);
+    }
+
+    /**
+     * 创建连接，把响应的原始字节转发到relay，同时回调listener
+     *
+     * @param client   OkHttpClient
+     * @param request  请求
+     * @param listener 监听器
+     * @param relay    原样转发的目标，每帧结束时flush
+     * @return
+     */
+    public static FrameEventSource relay(@NotNull OkHttpClient client, @NotNull Request request, @NotNull FrameListener listener,
+                                         @NotNull OutputStream relay) {
+        return connect(client, request, listener, relay);
+    }
+
+    private static FrameEventSource connect(OkHttpClient client, Request request, FrameListener listener, OutputStream relay) {
+        FrameEventSource eventSource = new FrameEventSource(request, listener, relay);
+        eventSource.call = client.newCall(eventSource.request);
+        eventSource.call.enqueue(eventSource);
+        return eventSource;
+    }
+
+    @Override
+    public void onFailure(Call call, IOException e) {
+        listener.onFailure(this, e, null);
+    }
+
+    @Override
+    public void onResponse(Call call, Response response) {
+        try (Response closeable = response) {
+            if (!response.isSuccessful()) {
+                listener.onFailure(this, null, response);
+                return;
+            }
+            ResponseBody body = response.body();
+            //长连接读取期间不再受callTimeout限制
+            Timeout timeout = call.timeout();
+            if (timeout instanceof AsyncTimeout) {
+                ((AsyncTimeout) timeout).exit();
+            }
+            //和RealEventSource一致，onOpen拿到的Response不包含响应体，响应体只能由这里读取
+            listener.onOpen(this, response.newBuilder().body(EMPTY_BODY).build());
+            SseFrameReader reader = new SseFrameReader(body.source(), new SseFrameReader.Callback() {
+                @Override
+                public void onData(Buffer data) throws IOException {
+                    listener.onData(FrameEventSource.this, data);
+                }
+
+                @Override
+                public void onDone() {
+                    listener.onDone(FrameEventSource.this);
+                }
+            }, relay);
+            try {
+                while (reader.processNextFrame()) {
+                }
+            } catch (Exception e) {
+                listener.onFailure(this, e, response);
+                return;
+            }
+            listener.onClosed(this);
+        }
+    }
+
+    @Override
+    public Request request() {
+        return request;
+    }
+
+    @Override
+    public void cancel() {
+        call.cancel();
+    }
+}
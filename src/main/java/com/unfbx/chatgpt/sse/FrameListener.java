@@ -0,0 +1,44 @@
+package com.unfbx.chatgpt.sse;
+
+import okhttp3.Response;
+import okhttp3.sse.EventSource;
+import okio.Buffer;
+
+import java.io.IOException;
+
+/**
+ * 描述：sse帧监听器，配合 {@link SseFrameReader} 使用
+ * <p>
+ * 与 {@link okhttp3.sse.EventSourceListener} 不同，data以字节形式返回，不创建String。
+ * 回调在OkHttp的读取线程中执行。
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-20
+ */
+public abstract class FrameListener {
+
+    public void onOpen(EventSource eventSource, Response response) {
+    }
+
+    /**
+     * 收到一个data帧
+     *
+     * @param eventSource sse
+     * @param data        帧内容，只在回调期间有效
+     */
+    public abstract void onData(EventSource eventSource, Buffer data) throws IOException;
+
+    /**
+     * 收到[DONE]
+     *
+     * @param eventSource sse
+     */
+    public void onDone(EventSource eventSource) {
+    }
+
+    public void onClosed(EventSource eventSource) {
+    }
+
+    public void onFailure(EventSource eventSource, Throwable t, Response response) {
+    }
+}
@@ -0,0 +1,281 @@
+package com.unfbx.chatgpt.sse;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.unfbx.chatgpt.entity.chat.ChatCompletion;
+import com.unfbx.chatgpt.entity.chat.Message;
+import com.unfbx.chatgpt.entity.common.OpenAiResponse;
+import com.unfbx.chatgpt.exception.BaseException;
+import com.unfbx.chatgpt.exception.CommonError;
+import com.unfbx.chatgpt.utils.TikTokensUtil;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Response;
+import okhttp3.sse.EventSource;
+import okhttp3.sse.EventSourceListener;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * 描述：连接中断后续接的流式输出
+ * <p>
+ * 回复过程中连接异常（网络抖动、服务端5xx、429）时，把已经收到的内容作为assistant消息追加到原请求后重新发起请求，
+ * 新请求的delta继续回调同一个业务监听器，业务监听器只收到一次onOpen和一次role，看不到中间的异常。
+ * 续接按指数退避等待，响应头带有Retry-After时至少等待指定的时间，等待期间取消请求不再续接。
+ * 续接次数超过上限、请求本身有误（4xx）、额度用尽（429 insufficient_quota）或者续接请求无法发出时，
+ * 回调业务监听器的onFailure，句柄状态为连接异常。
+ * <p>
+ * 续接依赖模型沿着已有的assistant内容继续生成，衔接处可能有重复或者不连贯，对内容要求严格的场景不要使用。
+ * 已经收到的内容包含所有choice的content，只支持n=1的请求。
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-25
+ */
+@Slf4j
+public class ResumableEventSourceListener extends EventSourceListener {
+    /**
+     * 默认第一次续接前等待的时间（毫秒），之后每次翻倍
+     */
+    public static final long DEFAULT_BACKOFF_MILLIS = 500;
+    /**
+     * 指数退避的最长等待时间（毫秒），不限制Retry-After
+     */
+    public static final long MAX_BACKOFF_MILLIS = 8_000;
+    /**
+     * 判断额度用尽时最多读取的响应体字节数
+     */
+    private static final long MAX_ERROR_BODY = 16 * 1024;
+
+    private static final String INSUFFICIENT_QUOTA = "insufficient_quota";
+
+    private final ChatCompletion chatCompletion;
+
+    private final EventSourceListener delegate;
+
+    private final StreamHandle handle;
+
+    private final int maxResumes;
+
+    private final long backoffMillis;
+    /**
+     * 根据请求参数和监听器发起请求
+     */
+    private final BiFunction<ChatCompletion, EventSourceListener, EventSource> connector;
+
+    private final DeltaExtractor extractor = new DeltaExtractor();
+    /**
+     * 截止目前收到的回复内容
+     */
+    private final StringBuilder content = new StringBuilder();
+    /**
+     * 已经续接的次数
+     */
+    @Getter
+    private volatile int resumes;
+
+    private boolean opened;
+
+    private boolean done;
+
+    /**
+     * @param chatCompletion 原请求参数，n必须为1
+     * @param delegate       业务监听器，一般为 {@link StreamHandle#listener(EventSourceListener)} 包装后的监听器
+     * @param handle         请求句柄，续接后绑定新的连接，已经取消时不再续接
+     * @param maxResumes     最多续接的次数
+     * @param connector      根据请求参数和监听器发起请求
+     */
+    public ResumableEventSourceListener(@NotNull ChatCompletion chatCompletion, @NotNull EventSourceListener delegate,
+                                        @NotNull StreamHandle handle, int maxResumes,
+                                        @NotNull BiFunction<ChatCompletion, EventSourceListener, EventSource> connector) {
+        this(chatCompletion, delegate, handle, maxResumes, DEFAULT_BACKOFF_MILLIS, connector);
+    }
+
+    /**
+     * @param chatCompletion 原请求参数，n必须为1
+     * @param delegate       业务监听器，一般为 {@link StreamHandle#listener(EventSourceListener)} 包装后的监听器
+     * @param handle         请求句柄，续接后绑定新的连接，已经取消时不再续接
+     * @param maxResumes     最多续接的次数
+     * @param backoffMillis  第一次续接前等待的时间（毫秒），之后每次翻倍，最长 {@link #MAX_BACKOFF_MILLIS}
+     * @param connector      根据请求参数和监听器发起请求
+     */
+    public ResumableEventSourceListener(@NotNull ChatCompletion chatCompletion, @NotNull EventSourceListener delegate,
+                                        @NotNull StreamHandle handle, int maxResumes, long backoffMillis,
+                                        @NotNull BiFunction<ChatCompletion, EventSourceListener, EventSource> connector) {
+        if (Objects.nonNull(chatCompletion.getN()) && chatCompletion.getN() != 1) {
+            log.error("参数异常：续接只支持n=1的请求，n：{}", chatCompletion.getN());
+            throw new BaseException(CommonError.PARAM_ERROR);
+        }
+        this.chatCompletion = chatCompletion;
+        this.delegate = delegate;
+        this.handle = handle;
+        this.maxResumes = maxResumes;
+        this.backoffMillis = backoffMillis;
+        this.connector = connector;
+    }
+
+    /**
+     * 发起第一次请求
+     */
+    public void connect() {
+        handle.bind(connector.apply(chatCompletion, this));
+    }
+
+    @Override
+    public void onOpen(EventSource eventSource, Response response) {
+        if (!opened) {
+            opened = true;
+            delegate.onOpen(eventSource, response);
+        }
+    }
+
+    @Override
+    public void onEvent(EventSource eventSource, String id, String type, String data) {
+        if (ChunkReader.isDone(data)) {
+            done = true;
+        } else {
+            int length;
+            try {
+                length = extractor.extract(data, content);
+            } catch (IOException e) {
+                log.warn("OpenAI返回数据解析异常，续接时不包含该内容：{}", data);
+                length = -1;
+            }
+            //续接的请求会重新返回一个只有role的delta，业务监听器已经收到过
+            if (resumes > 0 && length == 0 && Objects.nonNull(extractor.getRole())) {
+                return;
+            }
+        }
+        delegate.onEvent(eventSource, id, type, data);
+    }
+
+    @Override
+    public void onClosed(EventSource eventSource) {
+        delegate.onClosed(eventSource);
+    }
+
+    @Override
+    public void onFailure(EventSource eventSource, Throwable t, Response response) {
+        if (done || resumes >= maxResumes || handle.isDone() || !retryable(t, response)) {
+            delegate.onFailure(eventSource, t, response);
+            return;
+        }
+        resumes++;
+        long delay = backoff(response);
+        log.warn("OpenAI sse连接异常，{}ms后第{}次续接，已收到{}个字符", delay, resumes, content.length(), t);
+        try {
+            SchedulerHolder.scheduler.schedule(() -> reconnect(eventSource), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            fail(eventSource, e);
+        }
+    }
+
+    private void reconnect(EventSource previous) {
+        if (handle.isDone()) {
+            return;
+        }
+        try {
+            handle.bind(connector.apply(resume(), this));
+        } catch (RuntimeException e) {
+            log.error("OpenAI sse续接请求发起失败", e);
+            fail(previous, e);
+        }
+    }
+
+    private void fail(EventSource eventSource, Throwable t) {
+        try {
+            delegate.onFailure(eventSource, t, null);
+        } finally {
+            handle.fail(t);
+        }
+    }
+
+    /**
+     * 网络异常、429和5xx可以续接，额度用尽的429不续接
+     */
+    private boolean retryable(Throwable t, Response response) {
+        if (Objects.isNull(response)) {
+            return Objects.nonNull(t);
+        }
+        if (response.code() == 429) {
+            return !insufficientQuota(response);
+        }
+        return response.code() >= 500;
+    }
+
+    /**
+     * 读取响应体副本判断错误码，不影响业务监听器读取响应体
+     */
+    private static boolean insufficientQuota(Response response) {
+        try {
+            String body = response.peekBody(MAX_ERROR_BODY).string();
+            if (StrUtil.isBlank(body) || !JSONUtil.isJson(body)) {
+                return false;
+            }
+            OpenAiResponse openAiResponse = JSONUtil.toBean(body, OpenAiResponse.class);
+            OpenAiResponse.Error error = openAiResponse.getError();
+            return Objects.nonNull(error) && (INSUFFICIENT_QUOTA.equals(error.getCode()) || INSUFFICIENT_QUOTA.equals(error.getType()));
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 指数退避，Retry-After（秒）更长时按Retry-After等待
+     */
+    private long backoff(Response response) {
+        long delay = Math.min(MAX_BACKOFF_MILLIS, backoffMillis << Math.min(resumes - 1, 30));
+        if (Objects.nonNull(response)) {
+            String retryAfter = response.header("Retry-After");
+            if (StrUtil.isNotBlank(retryAfter)) {
+                try {
+                    delay = Math.max(delay, TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim())));
+                } catch (NumberFormatException e) {
+                    log.warn("Retry-After格式不支持：{}", retryAfter);
+                }
+            }
+        }
+        return delay;
+    }
+
+    /**
+     * 原请求追加已经收到的内容
+     */
+    private ChatCompletion resume() {
+        ChatCompletion resumed = new ChatCompletion();
+        BeanUtil.copyProperties(chatCompletion, resumed);
+        if (content.length() == 0) {
+            return resumed;
+        }
+        String partial = content.toString();
+        List<Message> messages = new ArrayList<>(chatCompletion.getMessages().size() + 1);
+        messages.addAll(chatCompletion.getMessages());
+        messages.add(Message.builder().role(Message.Role.ASSISTANT).content(partial).build());
+        resumed.setMessages(messages);
+        if (Objects.nonNull(chatCompletion.getMaxTokens())) {
+            int generated = TikTokensUtil.tokens(chatCompletion.getModel(), partial);
+            resumed.setMaxTokens(Math.max(1, chatCompletion.getMaxTokens() - generated));
+        }
+        return resumed;
+    }
+
+    /**
+     * 续接等待使用的定时线程，首次使用时创建
+     */
+    private static final class SchedulerHolder {
+        private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "openai-stream-resume");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
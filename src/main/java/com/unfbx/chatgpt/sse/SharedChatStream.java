@@ -0,0 +1,231 @@
+package com.unfbx.chatgpt.sse;
+
+import cn.hutool.json.JSONUtil;
+import com.unfbx.chatgpt.exception.BaseException;
+import com.unfbx.chatgpt.exception.CommonError;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.sse.EventSource;
+import okhttp3.sse.EventSourceListener;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 描述：多个订阅者共享同一个流式输出
+ * <p>
+ * 多人同时查看同一次回复时只发起一次请求：第一个订阅者订阅时发起请求，
+ * 之后加入的订阅者先收到一个包含截止目前全部内容的delta，然后继续收到实时的delta，
+ * 最后一个订阅者取消订阅时关闭上游连接。请求结束后订阅的会直接收到完整内容、[DONE]和onClosed。
+ * <p>
+ * 订阅者的回调在OkHttp读取线程中按顺序执行，慢的订阅者会拖慢所有订阅者，
+ * 可以使用 {@link ExecutorEventSourceListener} 包装订阅者。
+ * 订阅者收到的EventSource调用cancel时只取消自己的订阅。
+ * 截止目前的内容包含所有choice的content，只支持n=1的请求，n不为1时客户端报参数异常。
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-25
+ */
+@Slf4j
+public class SharedChatStream {
+
+    private final EventSource.Factory factory;
+
+    private final Request request;
+
+    private final Object lock = new Object();
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    private final DeltaExtractor extractor = new DeltaExtractor();
+    /**
+     * 截止目前的回复内容
+     */
+    private final StringBuilder content = new StringBuilder();
+
+    private final StreamHandle handle = new StreamHandle();
+
+    private boolean started;
+
+    private Response response;
+
+    private boolean done;
+
+    private boolean closed;
+
+    private Throwable error;
+
+    /**
+     * @param factory sse连接工厂
+     * @param request chat completion请求，stream需要为true
+     */
+    public SharedChatStream(@NotNull EventSource.Factory factory, @NotNull Request request) {
+        this.factory = factory;
+        this.request = request;
+    }
+
+    /**
+     * 订阅，第一个订阅者订阅时发起请求
+     *
+     * @param listener 订阅者
+     * @return 订阅，调用cancel取消订阅
+     */
+    public EventSource subscribe(@NotNull EventSourceListener listener) {
+        Subscription subscription = new Subscription(listener);
+        synchronized (lock) {
+            if (Objects.nonNull(response)) {
+                listener.onOpen(subscription, response);
+            }
+            if (content.length() > 0 || Objects.nonNull(extractor.getFinishReason())) {
+                listener.onEvent(subscription, null, null, replay());
+            }
+            if (done) {
+                listener.onEvent(subscription, null, null, ChunkReader.DONE);
+            }
+            if (closed) {
+                listener.onClosed(subscription);
+                return subscription;
+            }
+            if (Objects.nonNull(error) || handle.isDone()) {
+                listener.onFailure(subscription, Objects.nonNull(error) ? error : new BaseException(CommonError.RETRY_ERROR), null);
+                return subscription;
+            }
+            subscriptions.add(subscription);
+            if (!started) {
+                started = true;
+                handle.bind(factory.newEventSource(request, handle.listener(new Upstream())));
+            }
+        }
+        return subscription;
+    }
+
+    /**
+     * 当前订阅者数量
+     *
+     * @return
+     */
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * 截止目前的回复内容
+     *
+     * @return
+     */
+    public String getContent() {
+        synchronized (lock) {
+            return content.toString();
+        }
+    }
+
+    /**
+     * 上游请求句柄
+     *
+     * @return
+     */
+    public StreamHandle getHandle() {
+        return handle;
+    }
+
+    private void unsubscribe(Subscription subscription) {
+        synchronized (lock) {
+            if (subscriptions.remove(subscription) && subscriptions.isEmpty()) {
+                log.info("OpenAI共享流式输出已经没有订阅者，关闭连接");
+                handle.cancel();
+            }
+        }
+    }
+
+    /**
+     * 截止目前的内容合并为一个delta
+     */
+    private String replay() {
+        String finishReason = extractor.getFinishReason();
+        return "{\"choices\":[{\"index\":0,\"delta\":{\"role\":\"assistant\",\"content\":" + JSONUtil.quote(content.toString())
+                + "},\"finish_reason\":" + (Objects.isNull(finishReason) ? "null" : JSONUtil.quote(finishReason)) + "}]}";
+    }
+
+    /**
+     * 上游监听器，转发给所有订阅者
+     */
+    private final class Upstream extends EventSourceListener {
+
+        @Override
+        public void onOpen(EventSource eventSource, Response response) {
+            synchronized (lock) {
+                SharedChatStream.this.response = response;
+                for (Subscription subscription : subscriptions) {
+                    subscription.listener.onOpen(subscription, response);
+                }
+            }
+        }
+
+        @Override
+        public void onEvent(EventSource eventSource, String id, String type, String data) {
+            synchronized (lock) {
+                if (ChunkReader.isDone(data)) {
+                    done = true;
+                } else {
+                    try {
+                        extractor.extract(data, content);
+                    } catch (IOException e) {
+                        log.warn("OpenAI返回数据解析异常，不计入共享内容：{}", data);
+                    }
+                }
+                for (Subscription subscription : subscriptions) {
+                    subscription.listener.onEvent(subscription, id, type, data);
+                }
+            }
+        }
+
+        @Override
+        public void onClosed(EventSource eventSource) {
+            synchronized (lock) {
+                closed = true;
+                for (Subscription subscription : subscriptions) {
+                    subscription.listener.onClosed(subscription);
+                }
+                subscriptions.clear();
+            }
+        }
+
+        @Override
+        public void onFailure(EventSource eventSource, Throwable t, Response response) {
+            synchronized (lock) {
+                //响应体只能读取一次，读取后以异常的形式分发给所有订阅者
+                error = Objects.nonNull(t) ? t : new BaseException(ErrorResponses.message(response));
+                for (Subscription subscription : subscriptions) {
+                    subscription.listener.onFailure(subscription, error, null);
+                }
+                subscriptions.clear();
+            }
+        }
+    }
+
+    /**
+     * 单个订阅，cancel时取消订阅
+     */
+    private final class Subscription implements EventSource {
+
+        private final EventSourceListener listener;
+
+        private Subscription(EventSourceListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public Request request() {
+            return request;
+        }
+
+        @Override
+        public void cancel() {
+            unsubscribe(this);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.unfbx.chatgpt.sse;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Objects;
+
+/**
+ * 描述：低分配的sse帧解析
+ * <p>
+ * 只识别chat流式返回使用的 data: 字段，直接在okio的缓冲区上按字节匹配，
+ * 不为每一行、每个字段创建String。data内容移动到一个复用的Buffer中交给回调，
+ * 回调返回后Buffer会被清空，回调中需要的数据要自行读取或者复制。
+ * id、event、retry字段以及注释行会被忽略。
+ * <p>
+ * 指定relay时，读取到的每一行原始字节都会原样写入relay，每帧结束时flush，用于代理转发。
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-20
+ */
+public final class SseFrameReader {
+
+    private static final ByteString DATA = ByteString.encodeUtf8("data:");
+
+    private static final ByteString DONE = ByteString.encodeUtf8(ChunkReader.DONE);
+
+    private final BufferedSource source;
+
+    private final Callback callback;
+    /**
+     * 原样转发的目标，可以为null
+     */
+    private final OutputStream relay;
+    /**
+     * 当前帧的data内容，多行data使用\n拼接
+     */
+    private final Buffer data = new Buffer();
+
+    public interface Callback {
+        /**
+         * 收到一个data帧
+         *
+         * @param data 帧内容，只在回调期间有效
+         */
+        void onData(Buffer data) throws IOException;
+
+        /**
+         * 收到[DONE]
+         */
+        void onDone() throws IOException;
+    }
+
+    public SseFrameReader(@NotNull BufferedSource source, @NotNull Callback callback) {
+        this(source, callback, null);
+    }
+
+    /**
+     * @param source   sse响应
+     * @param callback 回调
+     * @param relay    原样转发的目标，建议使用带缓冲的输出流
+     */
+    public SseFrameReader(@NotNull BufferedSource source, @NotNull Callback callback, OutputStream relay) {
+        this.source = source;
+        this.callback = callback;
+        this.relay = relay;
+    }
+
+    /**
+     * 读取下一帧
+     *
+     * @return 已经读到流的末尾时返回false
+     * @throws IOException
+     */
+    public boolean processNextFrame() throws IOException {
+        while (true) {
+            long newline = source.indexOf((byte) '\n');
+            Buffer buffer = source.buffer();
+            if (newline == -1) {
+                long size = buffer.size();
+                if (Objects.nonNull(relay) && size > 0) {
+                    buffer.copyTo(relay, 0, size);
+                    relay.flush();
+                }
+                //流结束时最后一行没有换行符、帧没有以空行结尾的同样分发
+                if (size > 0) {
+                    line(lineEnd(buffer, size), size);
+                }
+                dispatch();
+                return false;
+            }
+            if (Objects.nonNull(relay)) {
+                buffer.copyTo(relay, 0, newline + 1);
+            }
+            long end = lineEnd(buffer, newline);
+            if (end == 0) {
+                if (Objects.nonNull(relay)) {
+                    relay.flush();
+                }
+                source.skip(newline + 1);
+                if (dispatch()) {
+                    return true;
+                }
+                continue;
+            }
+            line(end, newline + 1);
+        }
+    }
+
+    /**
+     * 去掉行尾的\r
+     */
+    private static long lineEnd(Buffer buffer, long newline) {
+        return newline > 0 && buffer.getByte(newline - 1) == '\r' ? newline - 1 : newline;
+    }
+
+    /**
+     * 解析缓冲区开头的一行，data字段追加到当前帧
+     *
+     * @param end  行内容的结束位置
+     * @param next 下一行的开始位置
+     */
+    private void line(long end, long next) throws IOException {
+        if (end >= DATA.size() && source.rangeEquals(0, DATA)) {
+            long start = DATA.size();
+            if (end > start && source.buffer().getByte(start) == ' ') {
+                start++;
+            }
+            source.skip(start);
+            if (data.size() > 0) {
+                data.writeByte('\n');
+            }
+            data.write(source, end - start);
+            source.skip(next - end);
+        } else {
+            source.skip(next);
+        }
+    }
+
+    /**
+     * 分发当前帧
+     *
+     * @return 有数据时返回true
+     */
+    private boolean dispatch() throws IOException {
+        if (data.size() == 0) {
+            return false;
+        }
+        try {
+            if (data.size() == DONE.size() && data.rangeEquals(0, DONE)) {
+                callback.onDone();
+            } else {
+                callback.onData(data);
+            }
+        } finally {
+            data.clear();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,233 @@
+package com.unfbx.chatgpt.sse;
+
+import cn.hutool.json.JSONUtil;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Response;
+import okhttp3.sse.EventSource;
+import okhttp3.sse.EventSourceListener;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Predicate;
+
+/**
+ * 描述：客户端判断回复已经完整时提前结束流式输出
+ * <p>
+ * 包装业务监听器，每个delta到达后用累计的回复内容依次判断结束条件，任一条件满足时：
+ * 向业务监听器补发一个finish_reason为 {@link #getFinishReason()} 的事件、[DONE]和onClosed，
+ * 然后关闭sse连接，不再继续读取（并付费）后续的回复。
+ * 绑定了 {@link StreamHandle} 时通过 {@link StreamHandle#stop()} 关闭，句柄状态为正常结束。
+ * <p>
+ * 累计内容包含所有choice的content，只支持n=1的请求，n不为1时客户端报参数异常。
+ * {@link #maxLength(int)}、{@link #contains(String)}、{@link #jsonComplete()} 返回的条件有状态，每次请求需要创建新的实例。
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-24
+ */
+@Slf4j
+public class StopConditionEventSourceListener extends EventSourceListener {
+    /**
+     * 默认的结束原因
+     */
+    public static final String DEFAULT_FINISH_REASON = "client_stop";
+
+    private final EventSourceListener delegate;
+
+    private final List<Predicate<CharSequence>> conditions;
+    /**
+     * 提前结束时补发的finish_reason
+     */
+    @Getter
+    private final String finishReason;
+
+    private final DeltaExtractor extractor = new DeltaExtractor();
+    /**
+     * 累计的回复内容
+     */
+    private final StringBuilder content = new StringBuilder();
+
+    private volatile StreamHandle handle;
+    /**
+     * 是否已经提前结束
+     */
+    @Getter
+    private volatile boolean stopped;
+
+    public StopConditionEventSourceListener(@NotNull EventSourceListener delegate, @NotNull List<Predicate<CharSequence>> conditions) {
+        this(delegate, conditions, DEFAULT_FINISH_REASON);
+    }
+
+    /**
+     * @param delegate     业务监听器
+     * @param conditions   结束条件，参数为截止目前累计的回复内容
+     * @param finishReason 提前结束时补发的finish_reason
+     */
+    public StopConditionEventSourceListener(@NotNull EventSourceListener delegate, @NotNull List<Predicate<CharSequence>> conditions,
+                                            @NotNull String finishReason) {
+        this.delegate = delegate;
+        this.conditions = conditions;
+        this.finishReason = finishReason;
+    }
+
+    /**
+     * 绑定请求句柄，提前结束时通过句柄关闭连接
+     *
+     * @param handle 请求句柄
+     */
+    public void bind(@NotNull StreamHandle handle) {
+        this.handle = handle;
+    }
+
+    @Override
+    public void onOpen(EventSource eventSource, Response response) {
+        delegate.onOpen(eventSource, response);
+    }
+
+    @Override
+    public void onEvent(EventSource eventSource, String id, String type, String data) {
+        if (stopped) {
+            return;
+        }
+        delegate.onEvent(eventSource, id, type, data);
+        if (ChunkReader.isDone(data)) {
+            return;
+        }
+        int length;
+        try {
+            length = extractor.extract(data, content);
+        } catch (IOException e) {
+            log.warn("OpenAI返回数据解析异常，不判断结束条件：{}", data);
+            return;
+        }
+        if (length > 0 && Objects.isNull(extractor.getFinishReason()) && matches()) {
+            stop(eventSource, id, type);
+        }
+    }
+
+    @Override
+    public void onClosed(EventSource eventSource) {
+        if (!stopped) {
+            delegate.onClosed(eventSource);
+        }
+    }
+
+    @Override
+    public void onFailure(EventSource eventSource, Throwable t, Response response) {
+        //提前结束关闭连接之后OkHttp回调的onFailure不再通知业务监听器
+        if (!stopped) {
+            delegate.onFailure(eventSource, t, response);
+        }
+    }
+
+    private boolean matches() {
+        for (Predicate<CharSequence> condition : conditions) {
+            if (condition.test(content)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void stop(EventSource eventSource, String id, String type) {
+        stopped = true;
+        String chunk = "{\"choices\":[{\"index\":0,\"delta\":{},\"finish_reason\":" + JSONUtil.quote(finishReason) + "}]}";
+        try {
+            delegate.onEvent(eventSource, id, type, chunk);
+            delegate.onEvent(eventSource, id, type, ChunkReader.DONE);
+            delegate.onClosed(eventSource);
+        } finally {
+            StreamHandle current = this.handle;
+            if (Objects.nonNull(current)) {
+                current.stop();
+            } else {
+                eventSource.cancel();
+            }
+        }
+    }
+
+    /**
+     * 回复达到指定字符数时结束
+     *
+     * @param maxChars 字符数
+     * @return
+     */
+    public static Predicate<CharSequence> maxLength(int maxChars) {
+        return text -> text.length() >= maxChars;
+    }
+
+    /**
+     * 回复中出现指定内容时结束，每次只检查新增的部分
+     *
+     * @param sentinel 结束标记
+     * @return
+     */
+    public static Predicate<CharSequence> contains(@NotNull String sentinel) {
+        return new Predicate<CharSequence>() {
+            private int from;
+
+            @Override
+            public boolean test(CharSequence text) {
+                int last = text.length() - sentinel.length();
+                for (int i = from; i <= last; i++) {
+                    if (regionMatches(text, i, sentinel)) {
+                        return true;
+                    }
+                }
+                from = Math.max(from, last + 1);
+                return false;
+            }
+        };
+    }
+
+    /**
+     * 回复中第一个JSON对象或者数组闭合时结束，跳过字符串中的括号，每次只检查新增的部分
+     *
+     * @return
+     */
+    public static Predicate<CharSequence> jsonComplete() {
+        return new Predicate<CharSequence>() {
+            private int from;
+            private int depth;
+            private boolean started;
+            private boolean inString;
+            private boolean escaped;
+
+            @Override
+            public boolean test(CharSequence text) {
+                for (; from < text.length(); from++) {
+                    char c = text.charAt(from);
+                    if (inString) {
+                        if (escaped) {
+                            escaped = false;
+                        } else if (c == '\\') {
+                            escaped = true;
+                        } else if (c == '"') {
+                            inString = false;
+                        }
+                    } else if (c == '"') {
+                        inString = started;
+                    } else if (c == '{' || c == '[') {
+                        started = true;
+                        depth++;
+                    } else if ((c == '}' || c == ']') && started && --depth == 0) {
+                        from++;
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    private static boolean regionMatches(CharSequence text, int offset, String sentinel) {
+        for (int j = 0; j < sentinel.length(); j++) {
+            if (text.charAt(offset + j) != sentinel.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,283 @@
+package com.unfbx.chatgpt.sse;
+
+import okhttp3.Response;
+import okhttp3.sse.EventSource;
+import okhttp3.sse.EventSourceListener;
+import okio.Buffer;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * 描述：流式请求句柄
+ * <p>
+ * 客户端断开时调用 {@link #cancel()} 立即关闭sse连接，释放socket和OkHttp Dispatcher中的请求数，
+ * 不再继续读取（并付费）后续的回复。
+ * {@link #getCompletion()} 在连接正常关闭或者调用 {@link #stop()} 时完成，连接异常时异常完成，取消时被取消。
+ * <p>
+ * 通过 {@link #listener(EventSourceListener)} 包装的业务监听器总是收到一次结束回调：
+ * 正常结束和 {@link #stop()} 之后回调onClosed，取消之后回调onFailure，异常为 {@link CancellationException}，
+ * 连接异常时回调onFailure。之后OkHttp的回调不再通知业务监听器。
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-18
+ */
+public class StreamHandle {
+
+    public enum Status {
+        /**
+         * 连接中
+         */
+        CONNECTING,
+        /**
+         * 已建立连接，正在接收数据
+         */
+        OPEN,
+        /**
+         * 正常结束
+         */
+        COMPLETED,
+        /**
+         * 连接异常
+         */
+        FAILED,
+        /**
+         * 主动取消
+         */
+        CANCELLED,
+    }
+
+    private final AtomicReference<Status> status = new AtomicReference<>(Status.CONNECTING);
+
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+    private volatile EventSource eventSource;
+
+    /**
+     * 创建一个已经失败的句柄，用于请求参数异常等无法发起请求的情况
+     *
+     * @param t 异常
+     * @return
+     */
+    public static StreamHandle failed(Throwable t) {
+        StreamHandle handle = new StreamHandle();
+        handle.fail(t);
+        return handle;
+    }
+
+    /**
+     * 包装业务监听器，连接状态变化时同步更新句柄
+     *
+     * @param delegate 业务监听器
+     * @return
+     */
+    public EventSourceListener listener(@NotNull EventSourceListener delegate) {
+        return new EventSourceListener() {
+            private final AtomicBoolean terminated = new AtomicBoolean();
+
+            @Override
+            public void onOpen(EventSource eventSource, Response response) {
+                status.compareAndSet(Status.CONNECTING, Status.OPEN);
+                delegate.onOpen(eventSource, response);
+            }
+
+            @Override
+            public void onEvent(EventSource eventSource, String id, String type, String data) {
+                delegate.onEvent(eventSource, id, type, data);
+            }
+
+            @Override
+            public void onClosed(EventSource eventSource) {
+                if (!terminated.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    delegate.onClosed(eventSource);
+                } finally {
+                    complete();
+                }
+            }
+
+            @Override
+            public void onFailure(EventSource eventSource, Throwable t, Response response) {
+                if (terminated.compareAndSet(false, true)) {
+                    failure(eventSource, t, response, delegate::onClosed, delegate::onFailure);
+                }
+            }
+        };
+    }
+
+    /**
+     * 包装帧监听器，连接状态变化时同步更新句柄
+     *
+     * @param delegate 帧监听器
+     * @return
+     */
+    public FrameListener listener(@NotNull FrameListener delegate) {
+        return new FrameListener() {
+            private final AtomicBoolean terminated = new AtomicBoolean();
+
+            @Override
+            public void onOpen(EventSource eventSource, Response response) {
+                status.compareAndSet(Status.CONNECTING, Status.OPEN);
+                delegate.onOpen(eventSource, response);
+            }
+
+            @Override
+            public void onData(EventSource eventSource, Buffer data) throws IOException {
+                delegate.onData(eventSource, data);
+            }
+
+            @Override
+            public void onDone(EventSource eventSource) {
+                delegate.onDone(eventSource);
+            }
+
+            @Override
+            public void onClosed(EventSource eventSource) {
+                if (!terminated.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    delegate.onClosed(eventSource);
+                } finally {
+                    complete();
+                }
+            }
+
+            @Override
+            public void onFailure(EventSource eventSource, Throwable t, Response response) {
+                if (terminated.compareAndSet(false, true)) {
+                    failure(eventSource, t, response, delegate::onClosed, delegate::onFailure);
+                }
+            }
+        };
+    }
+
+    /**
+     * 绑定sse连接，绑定前已经取消的会立即关闭连接
+     *
+     * @param eventSource sse
+     */
+    public void bind(@NotNull EventSource eventSource) {
+        this.eventSource = eventSource;
+        if (status.get() == Status.CANCELLED) {
+            eventSource.cancel();
+        }
+    }
+
+    /**
+     * 取消请求，关闭sse连接
+     *
+     * @return 请求已经结束时返回false
+     */
+    public boolean cancel() {
+        Status current = status.get();
+        while (current == Status.CONNECTING || current == Status.OPEN) {
+            if (status.compareAndSet(current, Status.CANCELLED)) {
+                EventSource source = this.eventSource;
+                if (Objects.nonNull(source)) {
+                    source.cancel();
+                }
+                completion.cancel(false);
+                return true;
+            }
+            current = status.get();
+        }
+        return false;
+    }
+
+    /**
+     * 客户端判断回复已经完整时主动结束请求，关闭sse连接，句柄状态为正常结束
+     *
+     * @return 请求已经结束时返回false
+     */
+    public boolean stop() {
+        Status current = status.get();
+        while (current == Status.CONNECTING || current == Status.OPEN) {
+            if (status.compareAndSet(current, Status.COMPLETED)) {
+                EventSource source = this.eventSource;
+                if (Objects.nonNull(source)) {
+                    source.cancel();
+                }
+                completion.complete(null);
+                return true;
+            }
+            current = status.get();
+        }
+        return false;
+    }
+
+    public Status getStatus() {
+        return status.get();
+    }
+
+    /**
+     * 请求是否已经结束（正常结束、异常、取消）
+     *
+     * @return
+     */
+    public boolean isDone() {
+        return completion.isDone();
+    }
+
+    /**
+     * 请求结束时完成
+     *
+     * @return
+     */
+    public CompletableFuture<Void> getCompletion() {
+        return completion;
+    }
+
+    /**
+     * 主动取消或者结束之后OkHttp也会回调onFailure，转换为对应的结束回调
+     */
+    private void failure(EventSource eventSource, Throwable t, Response response, Consumer<EventSource> onClosed,
+                         FailureCallback onFailure) {
+        Status current = status.get();
+        if (current == Status.COMPLETED) {
+            onClosed.accept(eventSource);
+            return;
+        }
+        if (current == Status.CANCELLED) {
+            CancellationException cancelled = new CancellationException("stream cancelled");
+            cancelled.initCause(t);
+            onFailure.onFailure(eventSource, cancelled, null);
+            return;
+        }
+        try {
+            onFailure.onFailure(eventSource, t, response);
+        } finally {
+            fail(Objects.nonNull(t) ? t : new IllegalStateException(String.valueOf(response)));
+        }
+    }
+
+    @FunctionalInterface
+    private interface FailureCallback {
+        void onFailure(EventSource eventSource, Throwable t, Response response);
+    }
+
+    private void complete() {
+        if (status.compareAndSet(Status.OPEN, Status.COMPLETED) || status.compareAndSet(Status.CONNECTING, Status.COMPLETED)) {
+            completion.complete(null);
+        }
+    }
+
+    /**
+     * 标记为连接异常，{@link ResumableEventSourceListener} 续接请求无法发出时使用
+     *
+     * @param t 异常
+     */
+    void fail(Throwable t) {
+        if (status.compareAndSet(Status.OPEN, Status.FAILED) || status.compareAndSet(Status.CONNECTING, Status.FAILED)) {
+            completion.completeExceptionally(t);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.unfbx.chatgpt.sse;
+
+import cn.hutool.core.util.StrUtil;
+import com.knuddels.jtokkit.api.Encoding;
+import com.unfbx.chatgpt.entity.chat.ChatChoice;
+import com.unfbx.chatgpt.entity.chat.ChatCompletion;
+import com.unfbx.chatgpt.entity.chat.ChatCompletionResponse;
+import com.unfbx.chatgpt.entity.common.Usage;
+import com.unfbx.chatgpt.utils.ModelProfile;
+import com.unfbx.chatgpt.utils.TikTokensUtil;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Response;
+import okhttp3.sse.EventSource;
+import okhttp3.sse.EventSourceListener;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * 描述：流式输出tokens统计
+ * <p>
+ * 流式返回的数据不包含usage，这个监听器包装业务自己的监听器，
+ * 在每个delta到达时增量估算回复的tokens，收到[DONE]时生成最终的 {@link Usage}。
+ * <p>
+ * 逐个delta计算的tokens数之和只是近似值：delta的边界和全文编码时的合并边界不一致，通常会偏大。
+ * 回复过程中的 {@link #getCompletionTokens()} 使用这个近似值，收到[DONE]时对每个choice的完整回复计算一次，
+ * 最终的 {@link Usage} 和对全文计算的结果一致。返回数据中带有usage时直接使用服务端的统计结果。
+ * <p>
+ * 请求tokens和回复使用的Encoding在创建监听器时确定，每个delta只解析一次，
+ * 业务监听器是 {@link ChatCompletionEventSourceListener} 时直接传递解析后的结果。
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-15
+ */
+@Slf4j
+public class TokenAccountingEventSourceListener extends EventSourceListener {
+
+    private final EventSourceListener delegate;
+    /**
+     * 业务监听器为ChatCompletionEventSourceListener时不为null
+     */
+    private final ChatCompletionEventSourceListener chatDelegate;
+    /**
+     * 回复使用的Encoding，模型不支持计算tokens时为null
+     */
+    private final Encoding encoding;
+    /**
+     * 请求tokens数
+     */
+    @Getter
+    private final long promptTokens;
+    /**
+     * 截止目前回复的tokens数，收到[DONE]之前为逐个delta计算的近似值
+     */
+    private volatile long completionTokens;
+    /**
+     * 每个choice已经收到的回复内容，只在读取线程中访问
+     */
+    private final Map<Long, StringBuilder> contents = new HashMap<>();
+    /**
+     * 服务端返回的usage
+     */
+    private volatile Usage serverUsage;
+    /**
+     * 收到[DONE]之后的最终统计结果
+     */
+    private volatile Usage usage;
+
+    private final Consumer<Usage> onUsage;
+
+    public TokenAccountingEventSourceListener(@NotNull ChatCompletion chatCompletion, @NotNull EventSourceListener delegate) {
+        this(chatCompletion, delegate, null);
+    }
+
+    /**
+     * @param chatCompletion 请求参数
+     * @param delegate       业务自己的监听器
+     * @param onUsage        收到[DONE]时回调最终的统计结果，可以为null
+     */
+    public TokenAccountingEventSourceListener(@NotNull ChatCompletion chatCompletion, @NotNull EventSourceListener delegate,
+                                              Consumer<Usage> onUsage) {
+        this.delegate = delegate;
+        this.chatDelegate = delegate instanceof ChatCompletionEventSourceListener ? (ChatCompletionEventSourceListener) delegate : null;
+        ModelProfile profile = ModelProfile.of(chatCompletion.getModel());
+        if (Objects.isNull(profile)) {
+            log.warn("[{}]模型不存在或者暂不支持计算tokens，回复tokens记为0", chatCompletion.getModel());
+        }
+        this.encoding = Objects.isNull(profile) ? null : TikTokensUtil.getEncoding(profile.getEncodingType());
+        this.promptTokens = chatCompletion.tokens();
+        this.onUsage = onUsage;
+    }
+
+    /**
+     * 截止目前回复的tokens数，收到[DONE]之前为近似值
+     *
+     * @return
+     */
+    public long getCompletionTokens() {
+        return completionTokens;
+    }
+
+    /**
+     * 获取tokens统计结果，收到[DONE]之前返回截止目前的统计
+     *
+     * @return
+     */
+    public Usage getUsage() {
+        Usage result = this.usage;
+        return Objects.nonNull(result) ? result : buildUsage();
+    }
+
+    @Override
+    public void onOpen(EventSource eventSource, Response response) {
+        delegate.onOpen(eventSource, response);
+    }
+
+    @Override
+    public void onEvent(EventSource eventSource, String id, String type, String data) {
+        if (ChunkReader.isDone(data)) {
+            this.usage = finalUsage();
+            if (Objects.nonNull(onUsage)) {
+                onUsage.accept(this.usage);
+            }
+            delegate.onEvent(eventSource, id, type, data);
+            return;
+        }
+        ChatCompletionResponse response;
+        try {
+            response = ChunkReader.read(data);
+        } catch (IOException e) {
+            log.warn("OpenAI返回数据解析异常，不计入tokens：{}", data);
+            delegate.onEvent(eventSource, id, type, data);
+            return;
+        }
+        count(response);
+        if (Objects.nonNull(chatDelegate)) {
+            chatDelegate.onResponse(eventSource, response);
+        } else {
+            delegate.onEvent(eventSource, id, type, data);
+        }
+    }
+
+    @Override
+    public void onClosed(EventSource eventSource) {
+        delegate.onClosed(eventSource);
+    }
+
+    @Override
+    public void onFailure(EventSource eventSource, Throwable t, Response response) {
+        delegate.onFailure(eventSource, t, response);
+    }
+
+    private void count(ChatCompletionResponse response) {
+        if (Objects.nonNull(response.getUsage())) {
+            serverUsage = response.getUsage();
+        }
+        if (Objects.isNull(encoding) || Objects.isNull(response.getChoices())) {
+            return;
+        }
+        long tokens = 0;
+        for (ChatChoice choice : response.getChoices()) {
+            if (Objects.nonNull(choice.getDelta()) && StrUtil.isNotEmpty(choice.getDelta().getContent())) {
+                String content = choice.getDelta().getContent();
+                contents.computeIfAbsent(choice.getIndex(), index -> new StringBuilder()).append(content);
+                tokens += encoding.countTokens(content);
+            }
+        }
+        completionTokens += tokens;
+    }
+
+    /**
+     * 最终的统计结果，优先使用服务端的usage，否则对每个choice的完整回复重新计算
+     *
+     * @return
+     */
+    private Usage finalUsage() {
+        Usage server = this.serverUsage;
+        if (Objects.nonNull(server)) {
+            completionTokens = server.getCompletionTokens();
+            return server;
+        }
+        if (Objects.nonNull(encoding)) {
+            long tokens = 0;
+            for (StringBuilder content : contents.values()) {
+                tokens += encoding.countTokens(content.toString());
+            }
+            completionTokens = tokens;
+        }
+        return buildUsage();
+    }
+
+    private Usage buildUsage() {
+        Usage result = new Usage();
+        result.setPromptTokens(promptTokens);
+        result.setCompletionTokens(completionTokens);
+        result.setTotalTokens(promptTokens + completionTokens);
+        return result;
+    }
+}
@@ -0,0 +1,88 @@
+package com.unfbx.chatgpt.sse;
+
+import com.unfbx.chatgpt.exception.BaseException;
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Response;
+import okhttp3.sse.EventSource;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 描述：把流式返回的content增量写入Writer
+ * <p>
+ * content先写入固定大小的缓冲区，缓冲区满时写出，连接结束时flush，
+ * 长回复不会整体保存在内存中。连接结束时 {@link #getResult()} 返回finish_reason，
+ * 异常时异常完成。Writer由调用方负责关闭。
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-22
+ */
+@Slf4j
+public class WriterFrameListener extends DeltaFrameListener {
+    /**
+     * 默认缓冲区大小（字符数）
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final BufferedWriter writer;
+
+    private final CompletableFuture<String> result = new CompletableFuture<>();
+
+    public WriterFrameListener(@NotNull Writer writer) {
+        this(writer, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param writer     content写入的目标
+     * @param bufferSize 缓冲区大小（字符数）
+     */
+    public WriterFrameListener(@NotNull Writer writer, int bufferSize) {
+        this(new BufferedWriter(writer, bufferSize));
+    }
+
+    private WriterFrameListener(BufferedWriter writer) {
+        super(writer);
+        this.writer = writer;
+    }
+
+    /**
+     * 连接结束时完成，结果为finish_reason，没有收到finish_reason时为null
+     *
+     * @return
+     */
+    public CompletableFuture<String> getResult() {
+        return result;
+    }
+
+    @Override
+    public void onClosed(EventSource eventSource) {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+            return;
+        }
+        result.complete(getFinishReason());
+    }
+
+    @Override
+    public void onFailure(EventSource eventSource, Throwable t, Response response) {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            log.warn("OpenAI sse连接异常，写出已接收的内容失败", e);
+        }
+        if (Objects.nonNull(t)) {
+            result.completeExceptionally(t);
+            return;
+        }
+        String msg = ErrorResponses.message(response);
+        log.error("OpenAI  sse连接异常：{}", msg);
+        result.completeExceptionally(new BaseException(msg));
+    }
+}
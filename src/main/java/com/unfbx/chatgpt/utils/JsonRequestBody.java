@@ -0,0 +1,82 @@
+package com.unfbx.chatgpt.utils;
+
+import cn.hutool.http.ContentType;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * 描述：JSON请求体，第一次获取长度或者发送时把参数直接序列化到okio的Buffer中，
+ * 不需要先序列化成String再转换成字节数组
+ * <p>
+ * 请求体长度已知，使用Content-Length发送，不使用chunked方式：
+ * chunked的结束块是一个单独的小数据包，在Nagle算法和延迟ACK的作用下每个请求会多等待约40ms。
+ * 序列化结果会被缓存，OkHttp重试时直接复用，创建之后不要再修改请求参数。
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-19
+ */
+public class JsonRequestBody extends RequestBody {
+
+    private static final MediaType JSON = MediaType.parse(ContentType.JSON.getValue());
+
+    private final ObjectWriter writer;
+
+    private final Object value;
+    /**
+     * 序列化后的请求体
+     */
+    private Buffer content;
+
+    /**
+     * @param writer 参考 {@link #writer(ObjectMapper)}
+     * @param value  请求参数
+     */
+    public JsonRequestBody(@NotNull ObjectWriter writer, @NotNull Object value) {
+        this.writer = writer;
+        this.value = value;
+    }
+
+    /**
+     * 创建可以共享的ObjectWriter，写完后不关闭OkHttp的输出流
+     *
+     * @param mapper
+     * @return
+     */
+    public static ObjectWriter writer(@NotNull ObjectMapper mapper) {
+        return mapper.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+
+    @Override
+    public MediaType contentType() {
+        return JSON;
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        return content().size();
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        Buffer buffer = content();
+        buffer.copyTo(sink.buffer(), 0, buffer.size());
+        sink.emitCompleteSegments();
+    }
+
+    private Buffer content() throws IOException {
+        if (content == null) {
+            Buffer buffer = new Buffer();
+            writer.writeValue(buffer.outputStream(), value);
+            content = buffer;
+        }
+        return content;
+    }
+}
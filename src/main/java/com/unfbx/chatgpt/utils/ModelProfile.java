@@ -0,0 +1,156 @@
+package com.unfbx.chatgpt.utils;
+
+import com.knuddels.jtokkit.api.EncodingType;
+import com.knuddels.jtokkit.api.ModelType;
+import com.unfbx.chatgpt.entity.chat.ChatCompletion;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * 描述：模型配置，统一维护模型的Encoding、tokens计算规则以及上下文长度
+ * <p>
+ * tokens计算、历史消息截断、参数校验都通过 {@link #of(String)} 获取，新增模型只需要 {@link #register(ModelProfile)}。
+ * 聊天模型的tokens计算规则只在 {@link #chat(String, ModelType, int)} 中维护：
+ * {@link ChatCompletion.Model} 中的模型和jtokkit中的gpt-*模型都按聊天模型注册，其余jtokkit模型按补全模型注册（无额外tokens）。
+ * 带日期后缀的模型名称（例如：gpt-4-32k-0613、gpt-4o-2024-05-13）未注册时按最长前缀匹配已注册的模型，
+ * 其他未注册的名称（例如：gpt-3.5-turbo-instruct）不做匹配，返回null。
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-14
+ */
+@Getter
+@Builder
+public class ModelProfile {
+    /**
+     * 模型名称
+     */
+    @NonNull
+    private final String name;
+    /**
+     * tokens计算使用的模型类型
+     */
+    @NonNull
+    private final ModelType modelType;
+    /**
+     * 每条消息固定的额外tokens
+     */
+    private final int tokensPerMessage;
+    /**
+     * 消息包含name时额外的tokens
+     */
+    private final int tokensPerName;
+    /**
+     * 上下文长度：请求tokens + 回复tokens
+     */
+    private final int contextWindow;
+
+    private static final Map<String, ModelProfile> profiles = new ConcurrentHashMap<>();
+    /**
+     * 可以按前缀匹配的日期后缀，例如：-0613、-2024-05-13
+     */
+    private static final Pattern SNAPSHOT_SUFFIX = Pattern.compile("-\\d{4}(-\\d{2}-\\d{2})?");
+    /**
+     * jtokkit中聊天模型的名称前缀
+     */
+    private static final String CHAT_PREFIX = "gpt-";
+
+    static {
+        for (ChatCompletion.Model model : ChatCompletion.Model.values()) {
+            ModelType modelType = ModelType.fromName(model.getName()).orElse(
+                    model.getName().startsWith(ChatCompletion.Model.GPT_4.getName()) ? ModelType.GPT_4 : ModelType.GPT_3_5_TURBO);
+            register(chat(model.getName(), modelType, model.getContextWindow()));
+        }
+        for (ModelType modelType : ModelType.values()) {
+            if (profiles.containsKey(modelType.getName())) {
+                continue;
+            }
+            register(modelType.getName().startsWith(CHAT_PREFIX)
+                    ? chat(modelType.getName(), modelType, modelType.getMaxContextLength())
+                    : ModelProfile.builder()
+                    .name(modelType.getName())
+                    .modelType(modelType)
+                    .contextWindow(modelType.getMaxContextLength())
+                    .build());
+        }
+    }
+
+    /**
+     * 聊天模型的配置，4.0统一处理：3、1，3.5统一处理：4、-1
+     *
+     * @param name          模型名称
+     * @param modelType     tokens计算使用的模型类型
+     * @param contextWindow 上下文长度
+     * @return
+     */
+    public static ModelProfile chat(@NonNull String name, @NonNull ModelType modelType, int contextWindow) {
+        boolean gpt35 = name.startsWith(ChatCompletion.Model.GPT_3_5_TURBO.getName());
+        return ModelProfile.builder()
+                .name(name)
+                .modelType(modelType)
+                .tokensPerMessage(gpt35 ? 4 : 3)
+                .tokensPerName(gpt35 ? -1 : 1)
+                .contextWindow(contextWindow)
+                .build();
+    }
+
+    /**
+     * Encoding类型
+     *
+     * @return
+     */
+    public EncodingType getEncodingType() {
+        return modelType.getEncodingType();
+    }
+
+    /**
+     * 注册或者覆盖模型配置
+     *
+     * @param profile 模型配置
+     */
+    public static void register(@NonNull ModelProfile profile) {
+        profiles.put(profile.getName(), profile);
+    }
+
+    /**
+     * 通过模型名称获取模型配置
+     *
+     * @param name 模型名称
+     * @return 未知模型返回null
+     */
+    public static ModelProfile of(String name) {
+        if (Objects.isNull(name)) {
+            return null;
+        }
+        ModelProfile profile = profiles.get(name);
+        if (Objects.nonNull(profile)) {
+            return profile;
+        }
+        profile = matchPrefix(name);
+        if (Objects.nonNull(profile)) {
+            profiles.putIfAbsent(name, profile);
+        }
+        return profile;
+    }
+
+    /**
+     * 带日期后缀时最长前缀匹配，例如：gpt-4-32k-0613 匹配 gpt-4-32k
+     */
+    private static ModelProfile matchPrefix(String name) {
+        ModelProfile matched = null;
+        for (ModelProfile profile : profiles.values()) {
+            String prefix = profile.getName();
+            if (name.length() > prefix.length() && name.startsWith(prefix)
+                    && SNAPSHOT_SUFFIX.matcher(name).region(prefix.length(), name.length()).matches()
+                    && (Objects.isNull(matched) || prefix.length() > matched.getName().length())) {
+                matched = profile;
+            }
+        }
+        return matched;
+    }
+}
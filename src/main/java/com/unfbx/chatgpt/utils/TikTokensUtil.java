@@ -5,13 +5,17 @@ import com.knuddels.jtokkit.Encodings;
 import com.knuddels.jtokkit.api.Encoding;
 import com.knuddels.jtokkit.api.EncodingRegistry;
 import com.knuddels.jtokkit.api.EncodingType;
+import com.knuddels.jtokkit.api.IntArrayList;
 import com.knuddels.jtokkit.api.ModelType;
-import com.unfbx.chatgpt.entity.chat.ChatCompletion;
 import com.unfbx.chatgpt.entity.chat.Message;
 import lombok.extern.slf4j.Slf4j;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * 描述：token计算工具类
@@ -22,22 +26,24 @@ import java.util.*;
 @Slf4j
 public class TikTokensUtil {
     /**
-     * 模型名称对应Encoding
+     * 空编码数组
      */
-    private static final Map<String, Encoding> modelMap = new HashMap<>();
+    private static final int[] EMPTY_ENCODED = new int[0];
     /**
-     * registry实例
+     * messages计算时，每次回复都会以 assistant 开头额外占用的tokens
      */
-    private static final EncodingRegistry registry = Encodings.newDefaultEncodingRegistry();
+    public static final int REPLY_PRIMING_TOKENS = 3;
+    /**
+     * tokens计算结果缓存，为null时不使用缓存
+     */
+    private static volatile TokensCache tokensCache = new TokensCache();
 
-    static {
-        for (ModelType modelType : ModelType.values()) {
-            modelMap.put(modelType.getName(), registry.getEncodingForModel(modelType));
-        }
-        modelMap.put(ChatCompletion.Model.GPT_3_5_TURBO_0301.getName(), registry.getEncodingForModel(ModelType.GPT_3_5_TURBO));
-        modelMap.put(ChatCompletion.Model.GPT_4_32K.getName(), registry.getEncodingForModel(ModelType.GPT_4));
-        modelMap.put(ChatCompletion.Model.GPT_4_32K_0314.getName(), registry.getEncodingForModel(ModelType.GPT_4));
-        modelMap.put(ChatCompletion.Model.GPT_4_0314.getName(), registry.getEncodingForModel(ModelType.GPT_4));
+    /**
+     * registry实例延迟到第一次计算tokens时创建，加载实体类不会触发BPE词表加载；
+     * 每种Encoding的词表在第一次使用时才加载，只用到cl100k_base时不会加载其他词表
+     */
+    private static final class RegistryHolder {
+        private static final EncodingRegistry registry = Encodings.newLazyEncodingRegistry();
     }
 
     /**
@@ -48,7 +54,7 @@ public class TikTokensUtil {
      * @return
      */
     public static List<Integer> encode(@NotNull Encoding enc, String text) {
-        return StrUtil.isBlank(text) ? new ArrayList<>() : enc.encode(text);
+        return StrUtil.isBlank(text) ? new ArrayList<>() : enc.encode(text).boxed();
     }
 
     /**
@@ -59,7 +65,21 @@ public class TikTokensUtil {
      * @return
      */
     public static int tokens(@NotNull Encoding enc, String text) {
-        return encode(enc, text).size();
+        return count(enc, text);
+    }
+
+    /**
+     * 通过Encoding和text获取编码数组，返回基本类型int数组
+     *
+     * @param enc
+     * @param text
+     * @return
+     */
+    public static int[] encodeToIntArray(@NotNull Encoding enc, String text) {
+        if (StrUtil.isBlank(text)) {
+            return EMPTY_ENCODED;
+        }
+        return enc.encode(text).toArray();
     }
 
 
@@ -71,7 +91,18 @@ public class TikTokensUtil {
      * @return
      */
     public static String decode(@NotNull Encoding enc, @NotNull List<Integer> encoded) {
-        return enc.decode(encoded);
+        return enc.decode(toIntArrayList(encoded));
+    }
+
+    /**
+     * 通过Encoding和int编码数组反推text信息
+     *
+     * @param enc
+     * @param encoded
+     * @return
+     */
+    public static String decode(@NotNull Encoding enc, @NotNull int[] encoded) {
+        return enc.decode(toIntArrayList(encoded));
     }
 
     /**
@@ -81,7 +112,7 @@ public class TikTokensUtil {
      * @return
      */
     public static Encoding getEncoding(@NotNull EncodingType encodingType) {
-        Encoding enc = registry.getEncoding(encodingType);
+        Encoding enc = RegistryHolder.registry.getEncoding(encodingType);
         return enc;
     }
 
@@ -95,9 +126,7 @@ public class TikTokensUtil {
         if (StrUtil.isBlank(text)) {
             return new ArrayList<>();
         }
-        Encoding enc = getEncoding(encodingType);
-        List<Integer> encoded = enc.encode(text);
-        return encoded;
+        return encode(getEncoding(encodingType), text);
     }
 
     /**
@@ -108,7 +137,24 @@ public class TikTokensUtil {
      * @return
      */
     public static int tokens(@NotNull EncodingType encodingType, String text) {
-        return encode(encodingType, text).size();
+        if (StrUtil.isBlank(text)) {
+            return 0;
+        }
+        return count(getEncoding(encodingType), text);
+    }
+
+    /**
+     * 获取encode的int编码数组，通过EncodingType
+     *
+     * @param encodingType
+     * @param text
+     * @return
+     */
+    public static int[] encodeToIntArray(@NotNull EncodingType encodingType, String text) {
+        if (StrUtil.isBlank(text)) {
+            return EMPTY_ENCODED;
+        }
+        return encodeToIntArray(getEncoding(encodingType), text);
     }
 
 
@@ -120,8 +166,18 @@ public class TikTokensUtil {
      * @return
      */
     public static String decode(@NotNull EncodingType encodingType, @NotNull List<Integer> encoded) {
-        Encoding enc = getEncoding(encodingType);
-        return enc.decode(encoded);
+        return decode(getEncoding(encodingType), encoded);
+    }
+
+    /**
+     * 通过EncodingType和int编码数组，反推字符串文本
+     *
+     * @param encodingType
+     * @param encoded
+     * @return
+     */
+    public static String decode(@NotNull EncodingType encodingType, @NotNull int[] encoded) {
+        return decode(getEncoding(encodingType), encoded);
     }
 
 
@@ -132,7 +188,8 @@ public class TikTokensUtil {
      * @return
      */
     public static Encoding getEncoding(@NotNull String modelName) {
-        return modelMap.get(modelName);
+        ModelProfile profile = ModelProfile.of(modelName);
+        return Objects.isNull(profile) ? null : getEncoding(profile.getEncodingType());
     }
 
     /**
@@ -147,11 +204,10 @@ public class TikTokensUtil {
         }
         Encoding enc = getEncoding(modelName);
         if (Objects.isNull(enc)) {
-            log.warn("[{}]模型不存在或者暂不支持计算tokens，直接返回tokens==0");
+            log.warn("[{}]模型不存在或者暂不支持计算tokens，直接返回tokens==0", modelName);
             return new ArrayList<>();
         }
-        List<Integer> encoded = enc.encode(text);
-        return encoded;
+        return encode(enc, text);
     }
 
     /**
@@ -162,7 +218,34 @@ public class TikTokensUtil {
      * @return
      */
     public static int tokens(@NotNull String modelName, String text) {
-        return encode(modelName, text).size();
+        if (StrUtil.isBlank(text)) {
+            return 0;
+        }
+        Encoding enc = getEncoding(modelName);
+        if (Objects.isNull(enc)) {
+            log.warn("[{}]模型不存在或者暂不支持计算tokens，直接返回tokens==0", modelName);
+            return 0;
+        }
+        return count(enc, text);
+    }
+
+    /**
+     * 获取encode的int编码数组，通过模型名称
+     *
+     * @param modelName
+     * @param text
+     * @return
+     */
+    public static int[] encodeToIntArray(@NotNull String modelName, String text) {
+        if (StrUtil.isBlank(text)) {
+            return EMPTY_ENCODED;
+        }
+        Encoding enc = getEncoding(modelName);
+        if (Objects.isNull(enc)) {
+            log.warn("[{}]模型不存在或者暂不支持计算tokens，直接返回tokens==0", modelName);
+            return EMPTY_ENCODED;
+        }
+        return encodeToIntArray(enc, text);
     }
 
 
@@ -176,30 +259,69 @@ public class TikTokensUtil {
      * @return
      */
     public static int tokens(@NotNull String modelName, @NotNull List<Message> messages) {
-        Encoding encoding = getEncoding(modelName);
-        int tokensPerMessage = 0;
-        int tokensPerName = 0;
-        //3.5统一处理
-        if (modelName.equals("gpt-3.5-turbo-0301") || modelName.equals("gpt-3.5-turbo")) {
-            tokensPerMessage = 4;
-            tokensPerName = -1;
-        }
-        //4.0统一处理
-        if (modelName.equals("gpt-4") || modelName.equals("gpt-4-0314")) {
-            tokensPerMessage = 3;
-            tokensPerName = 1;
+        ModelProfile profile = ModelProfile.of(modelName);
+        if (Objects.isNull(profile)) {
+            log.warn("[{}]模型不存在或者暂不支持计算tokens", modelName);
+            return 0;
         }
+        return tokens(profile, messages);
+    }
+
+    /**
+     * 通过模型配置计算messages的tokens
+     *
+     * @param profile  模型配置
+     * @param messages 消息体
+     * @return
+     * @see ModelProfile#of(String)
+     */
+    public static int tokens(@NotNull ModelProfile profile, @NotNull List<Message> messages) {
+        Encoding encoding = getEncoding(profile.getEncodingType());
         int sum = 0;
         for (Message msg : messages) {
-            sum += tokensPerMessage;
-            sum += tokens(encoding, msg.getContent());
-            sum += tokens(encoding, msg.getRole());
-            sum += tokens(encoding, msg.getName());
-            if (StrUtil.isNotBlank(msg.getName())) {
-                sum += tokensPerName;
-            }
+            sum += tokens(encoding, profile.getTokensPerMessage(), profile.getTokensPerName(), msg);
+        }
+        sum += REPLY_PRIMING_TOKENS;
+        return sum;
+    }
+
+    /**
+     * 通过模型名称计算单条message的tokens，包含每条消息固定的额外tokens，
+     * 不包含回复前缀的{@link #REPLY_PRIMING_TOKENS}
+     *
+     * @param modelName 模型名称
+     * @param message   消息
+     * @return
+     */
+    public static int tokens(@NotNull String modelName, @NotNull Message message) {
+        ModelProfile profile = ModelProfile.of(modelName);
+        if (Objects.isNull(profile)) {
+            log.warn("[{}]模型不存在或者暂不支持计算tokens", modelName);
+            return 0;
+        }
+        return tokens(profile, message);
+    }
+
+    /**
+     * 通过模型配置计算单条message的tokens，包含每条消息固定的额外tokens，
+     * 不包含回复前缀的{@link #REPLY_PRIMING_TOKENS}
+     *
+     * @param profile 模型配置
+     * @param message 消息
+     * @return
+     */
+    public static int tokens(@NotNull ModelProfile profile, @NotNull Message message) {
+        return tokens(getEncoding(profile.getEncodingType()), profile.getTokensPerMessage(), profile.getTokensPerName(), message);
+    }
+
+    private static int tokens(Encoding encoding, int tokensPerMessage, int tokensPerName, Message msg) {
+        int sum = tokensPerMessage;
+        sum += count(encoding, msg.getContent());
+        sum += count(encoding, msg.getRole());
+        sum += count(encoding, msg.getName());
+        if (StrUtil.isNotBlank(msg.getName())) {
+            sum += tokensPerName;
         }
-        sum += 3;
         return sum;
     }
 
@@ -211,8 +333,18 @@ public class TikTokensUtil {
      * @return
      */
     public static String decode(@NotNull String modelName, @NotNull List<Integer> encoded) {
-        Encoding enc = getEncoding(modelName);
-        return enc.decode(encoded);
+        return decode(getEncoding(modelName), encoded);
+    }
+
+    /**
+     * 通过模型名称和int编码数组，反推字符串文本
+     *
+     * @param modelName
+     * @param encoded
+     * @return
+     */
+    public static String decode(@NotNull String modelName, @NotNull int[] encoded) {
+        return decode(getEncoding(modelName), encoded);
     }
 
 
@@ -223,22 +355,198 @@ public class TikTokensUtil {
      * @return
      */
     public static ModelType getModelTypeByName(String name) {
-        if (ChatCompletion.Model.GPT_3_5_TURBO_0301.getName().equals(name)) {
-            return ModelType.GPT_3_5_TURBO;
+        ModelProfile profile = ModelProfile.of(name);
+        if (Objects.isNull(profile)) {
+            log.warn("[{}]模型不存在或者暂不支持计算tokens", name);
+            return null;
+        }
+        return profile.getModelType();
+    }
+
+    /**
+     * 批量计算tokens，使用ForkJoinPool.commonPool()并行计算
+     *
+     * @param encodingType
+     * @param texts        文本列表
+     * @return 与texts一一对应的tokens数
+     */
+    public static int[] batchTokens(@NotNull EncodingType encodingType, @NotNull List<String> texts) {
+        return batchTokens(getEncoding(encodingType), texts, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 批量计算tokens，流中的文本会先收集为列表
+     *
+     * @param encodingType
+     * @param texts        文本流
+     * @return 与texts顺序一致的tokens数
+     */
+    public static int[] batchTokens(@NotNull EncodingType encodingType, @NotNull Stream<String> texts) {
+        return batchTokens(encodingType, texts.collect(Collectors.toList()));
+    }
+
+    /**
+     * 批量计算tokens，按数据量切分任务交给指定的ForkJoinPool并行计算
+     * 批量数据一般不会重复，不经过tokens缓存，避免把缓存中的热点数据挤出去
+     *
+     * @param enc
+     * @param texts 文本列表
+     * @param pool  线程池
+     * @return 与texts一一对应的tokens数
+     */
+    public static int[] batchTokens(@NotNull Encoding enc, @NotNull List<String> texts, @NotNull ForkJoinPool pool) {
+        int[] result = new int[texts.size()];
+        if (result.length == 0) {
+            return result;
+        }
+        List<String> source = texts instanceof RandomAccess ? texts : new ArrayList<>(texts);
+        pool.invoke(new BatchTask(source, 0, result.length, batchThreshold(result.length, pool), (i, text) -> {
+            result[i] = StrUtil.isBlank(text) ? 0 : enc.countTokens(text);
+        }));
+        return result;
+    }
+
+    /**
+     * 批量获取int编码数组，使用ForkJoinPool.commonPool()并行计算
+     *
+     * @param encodingType
+     * @param texts        文本列表
+     * @return 与texts一一对应的编码数组
+     */
+    public static int[][] batchEncode(@NotNull EncodingType encodingType, @NotNull List<String> texts) {
+        return batchEncode(getEncoding(encodingType), texts, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 批量获取int编码数组，按数据量切分任务交给指定的ForkJoinPool并行计算
+     *
+     * @param enc
+     * @param texts 文本列表
+     * @param pool  线程池
+     * @return 与texts一一对应的编码数组
+     */
+    public static int[][] batchEncode(@NotNull Encoding enc, @NotNull List<String> texts, @NotNull ForkJoinPool pool) {
+        int[][] result = new int[texts.size()][];
+        if (result.length == 0) {
+            return result;
+        }
+        List<String> source = texts instanceof RandomAccess ? texts : new ArrayList<>(texts);
+        pool.invoke(new BatchTask(source, 0, result.length, batchThreshold(result.length, pool), (i, text) -> {
+            result[i] = encodeToIntArray(enc, text);
+        }));
+        return result;
+    }
+
+    /**
+     * 获取tokens计算结果缓存，可以查看命中次数等统计信息
+     *
+     * @return 未开启缓存时返回null
+     */
+    public static TokensCache getTokensCache() {
+        return tokensCache;
+    }
+
+    /**
+     * 自定义tokens计算结果缓存
+     *
+     * @param cache 传null关闭缓存
+     */
+    public static void setTokensCache(TokensCache cache) {
+        tokensCache = cache;
+    }
+
+    /**
+     * 计算tokens数，使用 {@link Encoding#countTokens(String)} 只计数，不创建编码集合
+     * 空文本和不支持的Encoding直接返回0
+     *
+     * @param enc
+     * @param text
+     * @return
+     */
+    private static int count(Encoding enc, String text) {
+        if (Objects.isNull(enc) || StrUtil.isBlank(text)) {
+            return 0;
+        }
+        TokensCache cache = tokensCache;
+        if (Objects.nonNull(cache)) {
+            return cache.tokens(enc, text);
+        }
+        return enc.countTokens(text);
+    }
+
+    /**
+     * 编码集合转换为jtokkit的IntArrayList
+     *
+     * @param encoded
+     * @return
+     */
+    private static IntArrayList toIntArrayList(List<Integer> encoded) {
+        IntArrayList result = new IntArrayList(encoded.size());
+        for (Integer token : encoded) {
+            result.add(token);
         }
-        if (ChatCompletion.Model.GPT_4.getName().equals(name)
-                || ChatCompletion.Model.GPT_4_32K.getName().equals(name)
-                || ChatCompletion.Model.GPT_4_32K_0314.getName().equals(name)
-                || ChatCompletion.Model.GPT_4_0314.getName().equals(name)) {
-            return ModelType.GPT_4;
+        return result;
+    }
+
+    /**
+     * int数组转换为jtokkit的IntArrayList
+     *
+     * @param encoded
+     * @return
+     */
+    private static IntArrayList toIntArrayList(int[] encoded) {
+        IntArrayList result = new IntArrayList(encoded.length);
+        for (int token : encoded) {
+            result.add(token);
+        }
+        return result;
+    }
+
+    /**
+     * 每个线程大约分到4个任务，方便工作窃取平衡长短不一的文本
+     *
+     * @param size
+     * @param pool
+     * @return
+     */
+    private static int batchThreshold(int size, ForkJoinPool pool) {
+        return Math.max(1, size / (pool.getParallelism() << 2));
+    }
+
+    @FunctionalInterface
+    private interface IndexedTextConsumer {
+        void accept(int index, String text);
+    }
+
+    /**
+     * 批量计算任务，按下标区间二分切分
+     */
+    private static final class BatchTask extends RecursiveAction {
+        private final List<String> texts;
+        private final int from;
+        private final int to;
+        private final int threshold;
+        private final IndexedTextConsumer consumer;
+
+        private BatchTask(List<String> texts, int from, int to, int threshold, IndexedTextConsumer consumer) {
+            this.texts = texts;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+            this.consumer = consumer;
         }
 
-        for (ModelType modelType : ModelType.values()) {
-            if (modelType.getName().equals(name)) {
-                return modelType;
+        @Override
+        protected void compute() {
+            if (to - from <= threshold) {
+                for (int i = from; i < to; i++) {
+                    consumer.accept(i, texts.get(i));
+                }
+                return;
             }
+            int mid = (from + to) >>> 1;
+            invokeAll(new BatchTask(texts, from, mid, threshold, consumer),
+                    new BatchTask(texts, mid, to, threshold, consumer));
         }
-        log.warn("[{}]模型不存在或者暂不支持计算tokens", name);
-        return null;
     }
 }
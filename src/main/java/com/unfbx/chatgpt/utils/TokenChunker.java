@@ -0,0 +1,258 @@
+package com.unfbx.chatgpt.utils;
+
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingType;
+import com.knuddels.jtokkit.api.IntArrayList;
+import com.unfbx.chatgpt.exception.BaseException;
+import com.unfbx.chatgpt.exception.CommonError;
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * 描述：按tokens数切分长文本，用于embeddings、摘要等场景
+ * <p>
+ * 文本按段编码一次，把每个token的边界映射回原文的字符下标，切分结果直接截取原文，
+ * 不需要对子串反复encode、decode。切分结果通过Stream惰性返回，
+ * 额外内存只和单段长度、maxTokens有关，与文本总长度无关。
+ * <p>
+ * 分段编码在没有空白字符的长文本（例如中文）处可能和整篇编码存在少量差异，每块的tokens数为近似值。
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-12
+ */
+@Getter
+public class TokenChunker {
+    /**
+     * 默认单次编码的字符数
+     */
+    public static final int DEFAULT_SEGMENT_LENGTH = 8192;
+
+    private final Encoding encoding;
+    /**
+     * 每块最大tokens数
+     */
+    private final int maxTokens;
+    /**
+     * 相邻两块重叠的tokens数
+     */
+    private final int overlap;
+    /**
+     * 单次编码的字符数
+     */
+    private final int segmentLength;
+
+    public TokenChunker(@NotNull EncodingType encodingType, int maxTokens) {
+        this(TikTokensUtil.getEncoding(encodingType), maxTokens, 0, DEFAULT_SEGMENT_LENGTH);
+    }
+
+    public TokenChunker(@NotNull EncodingType encodingType, int maxTokens, int overlap) {
+        this(TikTokensUtil.getEncoding(encodingType), maxTokens, overlap, DEFAULT_SEGMENT_LENGTH);
+    }
+
+    /**
+     * @param encoding      Encoding
+     * @param maxTokens     每块最大tokens数
+     * @param overlap       相邻两块重叠的tokens数，必须小于maxTokens
+     * @param segmentLength 单次编码的字符数
+     */
+    public TokenChunker(@NotNull Encoding encoding, int maxTokens, int overlap, int segmentLength) {
+        if (maxTokens <= 0 || overlap < 0 || overlap >= maxTokens || segmentLength <= 0) {
+            throw new BaseException(CommonError.PARAM_ERROR);
+        }
+        this.encoding = encoding;
+        this.maxTokens = maxTokens;
+        this.overlap = overlap;
+        this.segmentLength = segmentLength;
+    }
+
+    /**
+     * 切分文本
+     *
+     * @param text 文本
+     * @return 切分后的文本块
+     */
+    public Stream<String> split(@NotNull String text) {
+        return chunks(text).map(Chunk::getText);
+    }
+
+    /**
+     * 切分文本，返回每块在原文中的字符下标
+     *
+     * @param text 文本
+     * @return 切分后的文本块
+     */
+    public Stream<Chunk> chunks(@NotNull String text) {
+        Spliterator<Chunk> spliterator = Spliterators.spliteratorUnknownSize(new ChunkIterator(text),
+                Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false);
+    }
+
+    /**
+     * 文本块
+     */
+    @Getter
+    public static final class Chunk {
+        private final String source;
+        /**
+         * 在原文中的起始下标（包含）
+         */
+        private final int start;
+        /**
+         * 在原文中的结束下标（不包含）
+         */
+        private final int end;
+        /**
+         * tokens数
+         */
+        private final int tokens;
+
+        private Chunk(String source, int start, int end, int tokens) {
+            this.source = source;
+            this.start = start;
+            this.end = end;
+            this.tokens = tokens;
+        }
+
+        public String getText() {
+            return source.substring(start, end);
+        }
+    }
+
+    private final class ChunkIterator implements Iterator<Chunk> {
+        private final String text;
+        /**
+         * 当前块内每个token在原文中的结束下标
+         */
+        private final int[] ends = new int[maxTokens];
+        /**
+         * 当前块内的token数
+         */
+        private int count;
+        /**
+         * 当前块在原文中的起始下标
+         */
+        private int chunkStart;
+        /**
+         * 下一段待编码文本的起始下标
+         */
+        private int position;
+        /**
+         * 当前段内每个token在原文中的结束下标
+         */
+        private int[] segmentEnds = new int[0];
+        private int segmentIndex;
+        private Chunk next;
+
+        private ChunkIterator(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (Objects.isNull(next)) {
+                next = advance();
+            }
+            return Objects.nonNull(next);
+        }
+
+        @Override
+        public Chunk next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Chunk chunk = next;
+            next = null;
+            return chunk;
+        }
+
+        private Chunk advance() {
+            int fresh = 0;
+            while (count < maxTokens) {
+                if (segmentIndex == segmentEnds.length) {
+                    if (position >= text.length()) {
+                        break;
+                    }
+                    loadSegment();
+                    continue;
+                }
+                ends[count++] = segmentEnds[segmentIndex++];
+                fresh++;
+            }
+            if (fresh == 0) {
+                return null;
+            }
+            Chunk chunk = new Chunk(text, chunkStart, ends[count - 1], count);
+            int keep = Math.min(overlap, count - 1);
+            chunkStart = ends[count - keep - 1];
+            System.arraycopy(ends, count - keep, ends, 0, keep);
+            count = keep;
+            return chunk;
+        }
+
+        /**
+         * 编码下一段文本，并把token边界换算成原文字符下标
+         */
+        private void loadSegment() {
+            int end = segmentEnd(position);
+            IntArrayList tokens = encoding.encodeOrdinary(text.substring(position, end));
+            IntArrayList single = new IntArrayList(1);
+            int[] result = new int[tokens.size()];
+            int charIndex = position;
+            int byteIndex = 0;
+            int target = 0;
+            for (int i = 0; i < result.length; i++) {
+                single.clear();
+                single.add(tokens.get(i));
+                target += encoding.decodeBytes(single).length;
+                while (byteIndex < target && charIndex < end) {
+                    int codePoint = text.codePointAt(charIndex);
+                    byteIndex += utf8Length(codePoint);
+                    charIndex += Character.charCount(codePoint);
+                }
+                result[i] = charIndex;
+            }
+            segmentEnds = result;
+            segmentIndex = 0;
+            position = end;
+        }
+
+        /**
+         * 优先在空白字符前分段，其次在标点等非字母数字字符前分段，避免截断单词
+         */
+        private int segmentEnd(int from) {
+            int end = from + segmentLength;
+            if (end >= text.length()) {
+                return text.length();
+            }
+            int min = from + (segmentLength >> 1);
+            for (int i = end; i > min; i--) {
+                if (Character.isWhitespace(text.charAt(i)) && !Character.isWhitespace(text.charAt(i - 1))) {
+                    return i;
+                }
+            }
+            for (int i = end; i > min; i--) {
+                if (!Character.isLetterOrDigit(text.charAt(i)) && !Character.isSurrogate(text.charAt(i))) {
+                    return i;
+                }
+            }
+            return Character.isLowSurrogate(text.charAt(end)) ? end - 1 : end;
+        }
+    }
+
+    private static int utf8Length(int codePoint) {
+        if (codePoint < 0x80) {
+            return 1;
+        }
+        if (codePoint < 0x800) {
+            return 2;
+        }
+        if (codePoint < 0x10000) {
+            return 3;
+        }
+        return 4;
+    }
+}
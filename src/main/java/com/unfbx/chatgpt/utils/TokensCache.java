@@ -0,0 +1,265 @@
+package com.unfbx.chatgpt.utils;
+
+import com.knuddels.jtokkit.api.Encoding;
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 描述：tokens计算结果缓存
+ * <p>
+ * 缓存key由Encoding名称和原始文本组成，命中时会比较完整的文本，不会因为哈希冲突返回其他文本的tokens数。
+ * 缓存按key的哈希值分成多个段，每个段是一个独立加锁的LRU，不同段的读写互不阻塞。
+ * 重复发送的system提示词、历史对话只需要计算一次。
+ * <p>
+ * 缓存项持有原始文本的引用，按文本长度（字符数）计算权重，每个段的权重超过预算时从最久未访问的缓存项开始淘汰，
+ * 直到回到预算以内，缓存占用的内存只和字符总数有关，和条数无关。
+ * 超过 {@link #getMaxLength()} 的文本不进入缓存。
+ *
+ * @author https:www.unfbx.com
+ * @since 2023-04-10
+ */
+public class TokensCache {
+    /**
+     * 默认缓存文本的最大总字符数，2M个字符，按字符编码占用2~4MB
+     */
+    public static final long DEFAULT_MAX_WEIGHT = 2 * 1024 * 1024;
+    /**
+     * 默认参与缓存的最小文本长度，过短的文本直接计算比缓存更划算
+     */
+    public static final int DEFAULT_MIN_LENGTH = 32;
+    /**
+     * 默认参与缓存的最大文本长度
+     */
+    public static final int DEFAULT_MAX_LENGTH = 16 * 1024;
+    /**
+     * 最大分段数，2的幂
+     */
+    private static final int MAX_SEGMENTS = 16;
+    private final Segment[] segments;
+
+    private final long maxWeight;
+    /**
+     * 参与缓存的最小文本长度
+     */
+    @Getter
+    private final int minLength;
+    /**
+     * 参与缓存的最大文本长度
+     */
+    @Getter
+    private final int maxLength;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    public TokensCache() {
+        this(DEFAULT_MAX_WEIGHT, DEFAULT_MIN_LENGTH);
+    }
+
+    /**
+     * @param maxWeight 缓存文本的最大总字符数
+     * @param minLength 参与缓存的最小文本长度
+     */
+    public TokensCache(long maxWeight, int minLength) {
+        this(maxWeight, minLength, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * @param maxWeight 缓存文本的最大总字符数
+     * @param minLength 参与缓存的最小文本长度
+     * @param maxLength 参与缓存的最大文本长度
+     */
+    public TokensCache(long maxWeight, int minLength, int maxLength) {
+        if (maxWeight <= 0) {
+            throw new IllegalArgumentException("maxWeight must be positive");
+        }
+        this.maxWeight = maxWeight;
+        this.minLength = minLength;
+        this.maxLength = maxLength;
+        //每个分段至少能放下一条最长的文本，预算较小时减少分段数
+        long perSegment = Math.max(1, maxLength);
+        int count = (int) Math.min(MAX_SEGMENTS, Long.highestOneBit(Math.max(1, maxWeight / perSegment)));
+        long segmentWeight = (maxWeight + count - 1) / count;
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(segmentWeight);
+        }
+    }
+
+    /**
+     * 查询缓存，未命中时计算并放入缓存
+     *
+     * @param enc  Encoding
+     * @param text 文本
+     * @return tokens数
+     */
+    public int tokens(@NotNull Encoding enc, @NotNull String text) {
+        if (text.length() < minLength || text.length() > maxLength || text.length() > segments[0].maxWeight) {
+            return enc.countTokens(text);
+        }
+        Key key = new Key(enc.getName(), text);
+        Segment segment = segments[spread(key.hash) & (segments.length - 1)];
+        Integer tokens;
+        synchronized (segment) {
+            tokens = segment.get(key);
+        }
+        if (Objects.nonNull(tokens)) {
+            hits.increment();
+            return tokens;
+        }
+        misses.increment();
+        //在锁外计算，同一文本并发未命中时可能重复计算，结果相同
+        int result = enc.countTokens(text);
+        synchronized (segment) {
+            segment.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * 缓存命中次数
+     *
+     * @return
+     */
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * 缓存未命中次数
+     *
+     * @return
+     */
+    public long missCount() {
+        return misses.sum();
+    }
+
+    /**
+     * 当前缓存条数
+     *
+     * @return
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 当前缓存文本的总字符数
+     *
+     * @return
+     */
+    public long weight() {
+        long weight = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                weight += segment.weight;
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * 缓存文本的最大总字符数
+     *
+     * @return
+     */
+    public long maxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * 清空缓存
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * 单个分段，按访问顺序淘汰，权重为缓存文本的字符数
+     */
+    private static final class Segment {
+        private final LinkedHashMap<Key, Integer> map = new LinkedHashMap<>(16, 0.75f, true);
+
+        private final long maxWeight;
+
+        private long weight;
+
+        private Segment(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+        private Integer get(Key key) {
+            return map.get(key);
+        }
+
+        private void put(Key key, int tokens) {
+            if (Objects.isNull(map.put(key, tokens))) {
+                weight += key.text.length();
+            }
+            //超出预算时从最久未访问的开始淘汰，一次可能淘汰多条
+            Iterator<Key> eldest = map.keySet().iterator();
+            while (weight > maxWeight && eldest.hasNext()) {
+                weight -= eldest.next().text.length();
+                eldest.remove();
+            }
+        }
+
+        private int size() {
+            return map.size();
+        }
+
+        private void clear() {
+            map.clear();
+            weight = 0;
+        }
+    }
+
+    private static final class Key {
+        private final String encodingName;
+        private final String text;
+        private final int hash;
+
+        private Key(String encodingName, String text) {
+            this.encodingName = encodingName;
+            this.text = text;
+            this.hash = 31 * encodingName.hashCode() + text.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && encodingName.equals(other.encodingName) && text.equals(other.text);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -1,26 +1,78 @@
 package com.unfbx.chatgpt;
 
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingType;
 import com.unfbx.chatgpt.entity.billing.BillingUsage;
 import com.unfbx.chatgpt.entity.billing.CreditGrantsResponse;
 import com.unfbx.chatgpt.entity.billing.Subscription;
+import com.unfbx.chatgpt.entity.chat.ChatChoice;
 import com.unfbx.chatgpt.entity.chat.ChatCompletion;
+import com.unfbx.chatgpt.entity.chat.ChatCompletionResponse;
 import com.unfbx.chatgpt.entity.chat.Message;
+import com.unfbx.chatgpt.entity.common.Usage;
 import com.unfbx.chatgpt.entity.completions.Completion;
+import com.unfbx.chatgpt.exception.BaseException;
+import com.unfbx.chatgpt.exception.CommonError;
 import com.unfbx.chatgpt.interceptor.OpenAILogger;
 import com.unfbx.chatgpt.interceptor.OpenAiResponseInterceptor;
+import com.unfbx.chatgpt.sse.ChatChoiceIterator;
+import com.unfbx.chatgpt.sse.ChatCompletionEventSourceListener;
+import com.unfbx.chatgpt.sse.ChoiceListener;
+import com.unfbx.chatgpt.sse.CoalescingEventSourceListener;
 import com.unfbx.chatgpt.sse.ConsoleEventSourceListener;
+import com.unfbx.chatgpt.sse.DeltaExtractor;
+import com.unfbx.chatgpt.sse.DemultiplexingEventSourceListener;
+import com.unfbx.chatgpt.sse.ExecutorEventSourceListener;
+import com.unfbx.chatgpt.sse.FlowableEventSourceListener;
+import com.unfbx.chatgpt.sse.FrameListener;
+import com.unfbx.chatgpt.sse.ResumableEventSourceListener;
+import com.unfbx.chatgpt.sse.SseFrameReader;
+import com.unfbx.chatgpt.sse.SharedChatStream;
+import com.unfbx.chatgpt.sse.StopConditionEventSourceListener;
+import com.unfbx.chatgpt.sse.StreamHandle;
+import com.unfbx.chatgpt.sse.TokenAccountingEventSourceListener;
+import com.unfbx.chatgpt.sse.WriterFrameListener;
+import com.unfbx.chatgpt.utils.JsonRequestBody;
+import com.unfbx.chatgpt.utils.TikTokensUtil;
+import io.reactivex.subscribers.TestSubscriber;
 import lombok.extern.slf4j.Slf4j;
 import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.sse.EventSource;
+import okhttp3.sse.EventSourceListener;
+import okhttp3.sse.EventSources;
 import okhttp3.logging.HttpLoggingInterceptor;
+import okio.Buffer;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
 
 /**
  * 描述： 测试类
@@ -121,4 +173,923 @@ public class OpenAiStreamClientTest {
     }
 
 
+    @Test
+    public void chatCompletionsUsage() {
+        Message message = Message.builder().role(Message.Role.USER).content("random one word！").build();
+        ChatCompletion chatCompletion = ChatCompletion
+                .builder()
+                .messages(Arrays.asList(message))
+                .stream(true)
+                .build();
+        CountDownLatch countDownLatch = new CountDownLatch(1);
+        TokenAccountingEventSourceListener eventSourceListener = new TokenAccountingEventSourceListener(chatCompletion,
+                new ConsoleEventSourceListener(), usage -> {
+            log.info("本地计算的请求tokens数{}，回复tokens数{}，总tokens数{}",
+                    usage.getPromptTokens(), usage.getCompletionTokens(), usage.getTotalTokens());
+            countDownLatch.countDown();
+        });
+        client.streamChatCompletion(chatCompletion, eventSourceListener);
+        try {
+            countDownLatch.await(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 最终的回复tokens数按完整回复计算，和逐个delta累加的近似值不同；返回数据带usage时使用服务端的统计
+     */
+    @Test
+    public void tokenAccounting() {
+        Message message = Message.builder().role(Message.Role.USER).content("random one word！").build();
+        ChatCompletion chatCompletion = ChatCompletion.builder().messages(Arrays.asList(message)).build();
+        Encoding enc = TikTokensUtil.getEncoding(EncodingType.CL100K_BASE);
+        String[] deltas = {"Hel", "lo", " wor", "ld"};
+        Usage[] reported = new Usage[1];
+        TokenAccountingEventSourceListener listener = new TokenAccountingEventSourceListener(chatCompletion,
+                new EventSourceListener() {
+                }, usage -> reported[0] = usage);
+        long approximate = 0;
+        for (String delta : deltas) {
+            listener.onEvent(null, null, null, "{\"choices\":[{\"delta\":{\"content\":\"" + delta + "\"},\"index\":0}]}");
+            approximate += enc.countTokens(delta);
+        }
+        Assert.assertEquals(approximate, listener.getCompletionTokens());
+        listener.onEvent(null, null, null, "[DONE]");
+        long exact = enc.countTokens("Hello world");
+        Assert.assertTrue(exact < approximate);
+        Assert.assertEquals(chatCompletion.tokens(), reported[0].getPromptTokens());
+        Assert.assertEquals(exact, reported[0].getCompletionTokens());
+        Assert.assertEquals(chatCompletion.tokens() + exact, reported[0].getTotalTokens());
+        Assert.assertEquals(exact, listener.getCompletionTokens());
+        Assert.assertSame(reported[0], listener.getUsage());
+
+        TokenAccountingEventSourceListener server = new TokenAccountingEventSourceListener(chatCompletion,
+                new EventSourceListener() {
+                });
+        server.onEvent(null, null, null, "{\"choices\":[{\"delta\":{\"content\":\"Hello\"},\"index\":0}]}");
+        server.onEvent(null, null, null, "{\"choices\":[],\"usage\":{\"prompt_tokens\":9,\"completion_tokens\":12,\"total_tokens\":21}}");
+        server.onEvent(null, null, null, "[DONE]");
+        Assert.assertEquals(9, server.getUsage().getPromptTokens());
+        Assert.assertEquals(12, server.getUsage().getCompletionTokens());
+        Assert.assertEquals(21, server.getUsage().getTotalTokens());
+    }
+
+    @Test
+    public void chatCompletionsFlowable() {
+        Message message = Message.builder().role(Message.Role.USER).content("random one word！").build();
+        ChatCompletion chatCompletion = ChatCompletion
+                .builder()
+                .messages(Arrays.asList(message))
+                .build();
+        client.streamChatCompletionText(chatCompletion)
+                .blockingSubscribe(content -> log.info("OpenAI返回数据：{}", content),
+                        e -> log.error("OpenAI sse连接异常", e),
+                        () -> log.info("OpenAI返回数据结束了"));
+    }
+
+    @Test
+    public void flowableBackpressure() throws InterruptedException {
+        StubEventSource source = new StubEventSource();
+        String chunk = "{\"choices\":[{\"delta\":{\"content\":\"a\"},\"index\":0}]}";
+        TestSubscriber<ChatCompletionResponse> subscriber = new TestSubscriber<>(0);
+        FlowableEventSourceListener listener = new FlowableEventSourceListener(subscriber, 2);
+        subscriber.onSubscribe(listener);
+        listener.bind(source);
+        listener.onEvent(source, null, null, chunk);
+        listener.onEvent(source, null, null, chunk);
+        subscriber.assertValueCount(0);
+        //队列已满，读取线程等待下游request
+        CountDownLatch fed = new CountDownLatch(1);
+        new Thread(() -> {
+            listener.onEvent(source, null, null, chunk);
+            fed.countDown();
+        }).start();
+        Assert.assertFalse(fed.await(100, TimeUnit.MILLISECONDS));
+        subscriber.request(1);
+        Assert.assertTrue(fed.await(1, TimeUnit.SECONDS));
+        subscriber.assertValueCount(1);
+        //下游取消时唤醒等待中的读取线程并关闭连接
+        CountDownLatch released = new CountDownLatch(1);
+        new Thread(() -> {
+            listener.onEvent(source, null, null, chunk);
+            released.countDown();
+        }).start();
+        Assert.assertFalse(released.await(100, TimeUnit.MILLISECONDS));
+        subscriber.cancel();
+        Assert.assertTrue(released.await(1, TimeUnit.SECONDS));
+        Assert.assertTrue(source.isCancelled());
+        subscriber.assertValueCount(1);
+        subscriber.assertNotComplete();
+
+        TestSubscriber<ChatCompletionResponse> unbounded = new TestSubscriber<>();
+        FlowableEventSourceListener completed = new FlowableEventSourceListener(unbounded, 2);
+        unbounded.onSubscribe(completed);
+        for (int i = 0; i < 10; i++) {
+            completed.onEvent(source, null, null, chunk);
+        }
+        completed.onEvent(source, null, null, "[DONE]");
+        unbounded.assertValueCount(10);
+        unbounded.assertComplete();
+    }
+
+    @Test
+    public void chatCompletionsTyped() {
+        Message message = Message.builder().role(Message.Role.USER).content("random one word！").build();
+        ChatCompletion chatCompletion = ChatCompletion
+                .builder()
+                .messages(Arrays.asList(message))
+                .build();
+        CountDownLatch countDownLatch = new CountDownLatch(1);
+        client.streamChatCompletion(chatCompletion, new ChatCompletionEventSourceListener() {
+            @Override
+            protected void onDelta(EventSource eventSource, ChatChoice choice) {
+                log.info("OpenAI返回数据：{}", choice.getDelta().getContent());
+            }
+
+            @Override
+            protected void onComplete(EventSource eventSource, List<ChatChoice> choices) {
+                log.info("OpenAI完整回复：{}", choices.get(0).getMessage().getContent());
+                countDownLatch.countDown();
+            }
+        });
+        try {
+            countDownLatch.await(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    public void chatCompletionsCancel() throws InterruptedException {
+        Message message = Message.builder().role(Message.Role.USER).content("写一篇一千字的作文").build();
+        ChatCompletion chatCompletion = ChatCompletion
+                .builder()
+                .messages(Arrays.asList(message))
+                .build();
+        StreamHandle handle = client.streamChatCompletion(chatCompletion, new ConsoleEventSourceListener());
+        TimeUnit.SECONDS.sleep(3);
+        //模拟客户端断开，立即关闭sse连接
+        handle.cancel();
+        log.info("请求状态：{}", handle.getStatus());
+    }
+
+    /**
+     * 请求体长度和写出的字节数一致，重试时重新写出同样的内容，序列化异常通过onFailure返回
+     */
+    @Test
+    public void jsonRequestBody() throws IOException, InterruptedException {
+        ObjectWriter writer = JsonRequestBody.writer(new ObjectMapper());
+        Message message = Message.builder().role(Message.Role.USER).content("随便写一首诗").build();
+        ChatCompletion chatCompletion = ChatCompletion.builder().messages(Arrays.asList(message)).build();
+        JsonRequestBody body = new JsonRequestBody(writer, chatCompletion);
+        Buffer first = new Buffer();
+        body.writeTo(first);
+        Assert.assertEquals(body.contentLength(), first.size());
+        Assert.assertEquals(writer.writeValueAsString(chatCompletion), first.snapshot().utf8());
+        Buffer retry = new Buffer();
+        body.writeTo(retry);
+        Assert.assertEquals(first.snapshot(), retry.snapshot());
+
+        Object broken = new Object() {
+            public String getValue() {
+                throw new IllegalStateException("broken");
+            }
+        };
+        BlockingQueue<Throwable> failures = new LinkedBlockingQueue<>();
+        Request request = new Request.Builder().url("http://127.0.0.1:1/v1/chat/completions")
+                .post(new JsonRequestBody(writer, broken)).build();
+        EventSources.createFactory(new OkHttpClient()).newEventSource(request, new EventSourceListener() {
+            @Override
+            public void onFailure(EventSource eventSource, Throwable t, okhttp3.Response response) {
+                failures.add(t);
+            }
+        });
+        Throwable failure = failures.poll(10, TimeUnit.SECONDS);
+        Assert.assertTrue(failure instanceof JsonMappingException);
+        Assert.assertEquals("broken", failure.getCause().getMessage());
+    }
+
+    @Test
+    public void deltaExtractor() throws IOException {
+        DeltaExtractor extractor = new DeltaExtractor();
+        StringBuilder content = new StringBuilder();
+        extractor.extract("{\"choices\":[{\"delta\":{\"role\":\"assistant\"},\"index\":0,\"finish_reason\":null}]}", content);
+        extractor.extract("{\"choices\":[{\"delta\":{\"content\":\"Ser\"},\"index\":0,\"finish_reason\":null}]}", content);
+        extractor.extract("{\"choices\":[{\"delta\":{\"content\":\"endipity\"},\"index\":0,\"finish_reason\":null}]}", content);
+        extractor.extract("{\"choices\":[{\"delta\":{},\"index\":0,\"finish_reason\":\"stop\"}]}", content);
+        log.info("content：{}，finish_reason：{}", content, extractor.getFinishReason());
+        Assert.assertEquals("Serendipity", content.toString());
+        Assert.assertEquals("stop", extractor.getFinishReason());
+    }
+
+    @Test
+    public void relayFrames() throws IOException {
+        String sse = "data: {\"choices\":[{\"delta\":{\"content\":\"Hi\"},\"index\":0}]}\n\n"
+                + ": keep-alive\n\n"
+                + "data: [DONE]\n\n";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<String> frames = new ArrayList<>();
+        SseFrameReader reader = new SseFrameReader(new Buffer().writeUtf8(sse), new SseFrameReader.Callback() {
+            @Override
+            public void onData(Buffer data) {
+                frames.add(data.readUtf8());
+            }
+
+            @Override
+            public void onDone() {
+                frames.add("[DONE]");
+            }
+        }, out);
+        while (reader.processNextFrame()) {
+        }
+        Assert.assertEquals(sse, out.toString("UTF-8"));
+        Assert.assertEquals(Arrays.asList("{\"choices\":[{\"delta\":{\"content\":\"Hi\"},\"index\":0}]}", "[DONE]"), frames);
+    }
+
+    @Test
+    public void frameReaderEof() throws IOException {
+        String sse = "data: {\"choices\":[]}\n\n"
+                + "data: [DONE]";
+        List<String> frames = new ArrayList<>();
+        SseFrameReader reader = new SseFrameReader(new Buffer().writeUtf8(sse), new SseFrameReader.Callback() {
+            @Override
+            public void onData(Buffer data) {
+                frames.add(data.readUtf8());
+            }
+
+            @Override
+            public void onDone() {
+                frames.add("[DONE]");
+            }
+        });
+        while (reader.processNextFrame()) {
+        }
+        Assert.assertEquals(Arrays.asList("{\"choices\":[]}", "[DONE]"), frames);
+    }
+
+    /**
+     * content经过缓冲区写入Writer，连接结束和异常时都会写出缓冲区中的内容
+     */
+    @Test
+    public void writerFrameListener() throws IOException, InterruptedException {
+        String sse = "data: {\"choices\":[{\"delta\":{\"role\":\"assistant\"},\"index\":0}]}\n\n"
+                + "data: {\"choices\":[{\"delta\":{\"content\":\"Hel\"},\"index\":0}]}\n\n"
+                + "data: {\"choices\":[{\"delta\":{\"content\":\"lo\"},\"index\":0}]}\n\n"
+                + "data: {\"choices\":[{\"delta\":{\"content\":\"!\"},\"index\":0}]}\n\n"
+                + "data: {\"choices\":[{\"delta\":{},\"index\":0,\"finish_reason\":\"length\"}]}\n\n"
+                + "data: [DONE]\n\n";
+        StringWriter closed = new StringWriter();
+        WriterFrameListener listener = new WriterFrameListener(closed, 4);
+        feed(sse, listener);
+        //缓冲区只写出了已满的部分
+        Assert.assertEquals("Hell", closed.toString());
+        Assert.assertFalse(listener.getResult().isDone());
+        listener.onClosed(null);
+        Assert.assertEquals("Hello!", closed.toString());
+        Assert.assertEquals("length", listener.getResult().getNow(null));
+
+        StringWriter failed = new StringWriter();
+        listener = new WriterFrameListener(failed);
+        feed("data: {\"choices\":[{\"delta\":{\"content\":\"par\"},\"index\":0}]}\n\n"
+                + "data: {\"choices\":[{\"delta\":{\"content\":\"tial\"},\"index\":0}]}\n\n", listener);
+        Assert.assertEquals("", failed.toString());
+        IOException reset = new IOException("Connection reset");
+        listener.onFailure(null, reset, null);
+        Assert.assertEquals("partial", failed.toString());
+        try {
+            listener.getResult().get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertSame(reset, e.getCause());
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        listener = new WriterFrameListener(Channels.newWriter(Channels.newChannel(out), StandardCharsets.UTF_8.newEncoder(), -1));
+        feed("data: {\"choices\":[{\"delta\":{\"content\":\"你好😀\"},\"index\":0,\"finish_reason\":\"stop\"}]}\n\n"
+                + "data: [DONE]\n\n", listener);
+        listener.onClosed(null);
+        Assert.assertEquals("你好😀", new String(out.toByteArray(), StandardCharsets.UTF_8));
+        Assert.assertEquals("stop", listener.getResult().getNow(null));
+    }
+
+    @Test
+    public void chatCompletionsRelay() throws InterruptedException {
+        Message message = Message.builder().role(Message.Role.USER).content("随便写一首诗").build();
+        ChatCompletion chatCompletion = ChatCompletion.builder().messages(Arrays.asList(message)).build();
+        StreamHandle handle = client.relayChatCompletion(chatCompletion, System.out);
+        handle.getCompletion().whenComplete((v, t) -> log.info("转发结束：{}", handle.getStatus()));
+        CountDownLatch countDownLatch = new CountDownLatch(1);
+        countDownLatch.await(30, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void chatCompletionsWriter() throws Exception {
+        Message message = Message.builder().role(Message.Role.USER).content("随便写一首诗").build();
+        ChatCompletion chatCompletion = ChatCompletion.builder().messages(Arrays.asList(message)).build();
+        StringWriter writer = new StringWriter();
+        String finishReason = client.streamChatCompletion(chatCompletion, writer).get(60, TimeUnit.SECONDS);
+        log.info("content：{}，finish_reason：{}", writer, finishReason);
+    }
+
+    @Test
+    public void coalescing() {
+        List<ChatChoice> batches = new ArrayList<>();
+        CoalescingEventSourceListener listener = new CoalescingEventSourceListener(10_000, 5) {
+            @Override
+            protected void onBatch(EventSource eventSource, ChatChoice batch) {
+                batches.add(batch);
+            }
+        };
+        listener.onEvent(null, null, null, "{\"choices\":[{\"delta\":{\"content\":\"Ser\"},\"index\":0}]}");
+        listener.onEvent(null, null, null, "{\"choices\":[{\"delta\":{\"content\":\"endi\"},\"index\":0}]}");
+        listener.onEvent(null, null, null, "{\"choices\":[{\"delta\":{\"content\":\"pity\"},\"index\":0}]}");
+        listener.onEvent(null, null, null, "{\"choices\":[{\"delta\":{},\"index\":0,\"finish_reason\":\"stop\"}]}");
+        listener.onEvent(null, null, null, "[DONE]");
+        Assert.assertEquals(2, batches.size());
+        Assert.assertEquals("Serendi", batches.get(0).getDelta().getContent());
+        Assert.assertEquals("pity", batches.get(1).getDelta().getContent());
+        Assert.assertEquals("stop", batches.get(1).getFinishReason());
+    }
+
+    /**
+     * 没有指定executor时，窗口结束后不等下一个delta，由定时线程直接返回；连接结束时在读取线程中返回剩余内容
+     */
+    @Test
+    public void coalescingWindow() throws InterruptedException {
+        BlockingQueue<String> batches = new LinkedBlockingQueue<>();
+        CoalescingEventSourceListener listener = new CoalescingEventSourceListener(20, 256) {
+            @Override
+            protected void onBatch(EventSource eventSource, ChatChoice batch) {
+                batches.add(Thread.currentThread().getName() + ":" + batch.getDelta().getContent());
+            }
+        };
+        listener.onEvent(null, null, null, "{\"choices\":[{\"delta\":{\"content\":\"a\"},\"index\":0}]}");
+        listener.onEvent(null, null, null, "{\"choices\":[{\"delta\":{\"content\":\"b\"},\"index\":0}]}");
+        Assert.assertEquals("openai-delta-coalescing:ab", batches.poll(1, TimeUnit.SECONDS));
+        listener.onEvent(null, null, null, "{\"choices\":[{\"delta\":{\"content\":\"c\"},\"index\":0}]}");
+        listener.onClosed(null);
+        Assert.assertTrue(batches.poll(1, TimeUnit.SECONDS).endsWith(":c"));
+        Assert.assertNull(batches.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * 指定executor时，窗口结束后在executor中返回，每次返回后重新计时
+     */
+    @Test
+    public void coalescingExecutor() throws InterruptedException {
+        BlockingQueue<String> batches = new LinkedBlockingQueue<>();
+        ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "coalescing-callback"));
+        CoalescingEventSourceListener listener = new CoalescingEventSourceListener(executor, 20, 3) {
+            @Override
+            protected void onBatch(EventSource eventSource, ChatChoice batch) {
+                batches.add(Thread.currentThread().getName() + ":" + batch.getDelta().getContent());
+            }
+        };
+        String reader = Thread.currentThread().getName();
+        listener.onEvent(null, null, null, "{\"choices\":[{\"delta\":{\"content\":\"Ser\"},\"index\":0}]}");
+        listener.onEvent(null, null, null, "{\"choices\":[{\"delta\":{\"content\":\"en\"},\"index\":0}]}");
+        Assert.assertEquals(reader + ":Ser", batches.poll(1, TimeUnit.SECONDS));
+        Assert.assertEquals("coalescing-callback:en", batches.poll(1, TimeUnit.SECONDS));
+        listener.onEvent(null, null, null, "{\"choices\":[{\"delta\":{\"content\":\"dipity\"},\"index\":0}]}");
+        //回调串行执行，executor线程仍在返回上一批时由它继续返回
+        Assert.assertTrue(batches.poll(1, TimeUnit.SECONDS).endsWith(":dipity"));
+        Assert.assertNull(batches.poll(100, TimeUnit.MILLISECONDS));
+        executor.shutdown();
+    }
+
+    @Test
+    public void executorListener() throws InterruptedException {
+        List<String> received = new ArrayList<>();
+        CountDownLatch closed = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        ExecutorEventSourceListener listener = new ExecutorEventSourceListener(new EventSourceListener() {
+            @Override
+            public void onEvent(EventSource eventSource, String id, String type, String data) {
+                received.add(data);
+            }
+
+            @Override
+            public void onClosed(EventSource eventSource) {
+                received.add("closed");
+                closed.countDown();
+            }
+        }, executor, 16, ExecutorEventSourceListener.OverflowPolicy.BLOCK);
+        for (int i = 0; i < 1000; i++) {
+            listener.onEvent(null, null, null, String.valueOf(i));
+        }
+        listener.onClosed(null);
+        Assert.assertTrue(closed.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        Assert.assertEquals(1001, received.size());
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(String.valueOf(i), received.get(i));
+        }
+        Assert.assertEquals("closed", received.get(1000));
+    }
+
+    /**
+     * 句柄状态变化：取消、主动结束、正常结束、异常之后业务监听器都只收到一次结束回调
+     */
+    @Test
+    public void streamHandle() {
+        IOException canceled = new IOException("Canceled");
+        List<String> received = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        EventSourceListener recorder = new EventSourceListener() {
+            @Override
+            public void onClosed(EventSource eventSource) {
+                received.add("closed");
+            }
+
+            @Override
+            public void onFailure(EventSource eventSource, Throwable t, okhttp3.Response response) {
+                received.add("failure");
+                failures.add(t);
+            }
+        };
+
+        StreamHandle cancelled = new StreamHandle();
+        StubEventSource source = new StubEventSource();
+        EventSourceListener listener = cancelled.listener(recorder);
+        cancelled.bind(source);
+        Assert.assertEquals(StreamHandle.Status.CONNECTING, cancelled.getStatus());
+        listener.onOpen(source, null);
+        Assert.assertEquals(StreamHandle.Status.OPEN, cancelled.getStatus());
+        Assert.assertTrue(cancelled.cancel());
+        Assert.assertFalse(cancelled.cancel());
+        Assert.assertTrue(source.isCancelled());
+        Assert.assertEquals(StreamHandle.Status.CANCELLED, cancelled.getStatus());
+        Assert.assertTrue(cancelled.getCompletion().isCancelled());
+        listener.onFailure(source, canceled, null);
+        listener.onClosed(source);
+        Assert.assertEquals(Arrays.asList("failure"), received);
+        Assert.assertTrue(failures.get(0) instanceof CancellationException);
+        Assert.assertSame(canceled, failures.get(0).getCause());
+
+        received.clear();
+        StreamHandle stopped = new StreamHandle();
+        source = new StubEventSource();
+        listener = stopped.listener(recorder);
+        stopped.bind(source);
+        listener.onOpen(source, null);
+        Assert.assertTrue(stopped.stop());
+        Assert.assertTrue(source.isCancelled());
+        listener.onFailure(source, canceled, null);
+        Assert.assertEquals(Arrays.asList("closed"), received);
+        Assert.assertEquals(StreamHandle.Status.COMPLETED, stopped.getStatus());
+        Assert.assertFalse(stopped.getCompletion().isCompletedExceptionally());
+
+        received.clear();
+        StreamHandle completed = new StreamHandle();
+        listener = completed.listener(recorder);
+        listener.onOpen(null, null);
+        listener.onClosed(null);
+        listener.onFailure(null, canceled, null);
+        Assert.assertEquals(Arrays.asList("closed"), received);
+        Assert.assertEquals(StreamHandle.Status.COMPLETED, completed.getStatus());
+        Assert.assertFalse(completed.cancel());
+
+        received.clear();
+        failures.clear();
+        StreamHandle failed = new StreamHandle();
+        listener = failed.listener(recorder);
+        listener.onOpen(null, null);
+        IOException reset = new IOException("Connection reset");
+        listener.onFailure(null, reset, null);
+        listener.onClosed(null);
+        Assert.assertEquals(Arrays.asList("failure"), received);
+        Assert.assertSame(reset, failures.get(0));
+        Assert.assertEquals(StreamHandle.Status.FAILED, failed.getStatus());
+        Assert.assertTrue(failed.getCompletion().isCompletedExceptionally());
+
+        //绑定前已经取消的立即关闭连接
+        StreamHandle early = new StreamHandle();
+        Assert.assertTrue(early.cancel());
+        source = new StubEventSource();
+        early.bind(source);
+        Assert.assertTrue(source.isCancelled());
+    }
+
+    /**
+     * 阻塞迭代器：[DONE]之后关闭为正常结束，关闭时中断等待中的读取线程，读取超时后报异常
+     */
+    @Test
+    public void chatChoiceIterator() throws InterruptedException {
+        String chunk = "{\"choices\":[{\"delta\":{\"content\":\"hi\"},\"index\":0}]}";
+        ChatChoiceIterator done = new ChatChoiceIterator();
+        StreamHandle handle = new StreamHandle();
+        done.bind(handle);
+        done.onEvent(null, null, null, chunk);
+        done.onEvent(null, null, null, "[DONE]");
+        Assert.assertEquals("hi", done.next().getDelta().getContent());
+        done.close();
+        Assert.assertFalse(done.hasNext());
+        Assert.assertEquals(StreamHandle.Status.COMPLETED, handle.getStatus());
+
+        ChatChoiceIterator blocked = new ChatChoiceIterator(1);
+        boolean[] interrupted = new boolean[1];
+        Thread reader = new Thread(() -> {
+            blocked.onEvent(null, null, null, chunk);
+            blocked.onEvent(null, null, null, chunk);
+            interrupted[0] = Thread.currentThread().isInterrupted();
+        });
+        reader.start();
+        Thread.sleep(50);
+        Assert.assertTrue(reader.isAlive());
+        blocked.close();
+        reader.join(1000);
+        Assert.assertFalse(reader.isAlive());
+        Assert.assertFalse(interrupted[0]);
+        Assert.assertFalse(blocked.hasNext());
+
+        ChatChoiceIterator slow = new ChatChoiceIterator(1, 20);
+        StubEventSource eventSource = new StubEventSource();
+        slow.onEvent(eventSource, null, null, chunk);
+        slow.onEvent(eventSource, null, null, chunk);
+        Assert.assertTrue(eventSource.isCancelled());
+        Assert.assertEquals("hi", slow.next().getDelta().getContent());
+        try {
+            slow.hasNext();
+            Assert.fail();
+        } catch (BaseException e) {
+            Assert.assertEquals(CommonError.STREAM_CONSUMER_OVERFLOW.msg(), e.getMessage());
+        }
+    }
+
+    /**
+     * DROP_OLDEST只丢弃普通事件，onOpen和onClosed不会被丢弃
+     */
+    @Test
+    public void executorListenerDropOldest() {
+        List<String> received = new ArrayList<>();
+        List<Runnable> tasks = new ArrayList<>();
+        ExecutorEventSourceListener listener = new ExecutorEventSourceListener(new EventSourceListener() {
+            @Override
+            public void onOpen(EventSource eventSource, okhttp3.Response response) {
+                received.add("open");
+            }
+
+            @Override
+            public void onEvent(EventSource eventSource, String id, String type, String data) {
+                received.add(data);
+            }
+
+            @Override
+            public void onClosed(EventSource eventSource) {
+                received.add("closed");
+            }
+        }, tasks::add, 2, ExecutorEventSourceListener.OverflowPolicy.DROP_OLDEST);
+        listener.onOpen(null, null);
+        for (int i = 0; i < 10; i++) {
+            listener.onEvent(null, null, null, String.valueOf(i));
+        }
+        listener.onClosed(null);
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+        Assert.assertEquals(Arrays.asList("open", "8", "9", "closed"), received);
+        Assert.assertEquals(8, listener.getDropped());
+    }
+
+    /**
+     * BLOCK策略下取消时唤醒等待队列空位的读取线程
+     */
+    @Test
+    public void executorListenerCancel() throws InterruptedException {
+        List<Runnable> tasks = new ArrayList<>();
+        StubEventSource source = new StubEventSource();
+        ExecutorEventSourceListener listener = new ExecutorEventSourceListener(new EventSourceListener() {
+        }, tasks::add, 1, ExecutorEventSourceListener.OverflowPolicy.BLOCK);
+        CountDownLatch released = new CountDownLatch(1);
+        new Thread(() -> {
+            listener.onEvent(source, null, null, "a");
+            listener.onEvent(source, null, null, "b");
+            released.countDown();
+        }).start();
+        Assert.assertFalse(released.await(100, TimeUnit.MILLISECONDS));
+        listener.cancel();
+        Assert.assertTrue(released.await(1, TimeUnit.SECONDS));
+        Assert.assertTrue(source.isCancelled());
+    }
+
+    /**
+     * 线程池拒绝执行时关闭连接，业务监听器在当前线程收到一次onFailure
+     */
+    @Test
+    public void executorListenerRejected() {
+        List<Throwable> failures = new ArrayList<>();
+        StubEventSource source = new StubEventSource();
+        ExecutorEventSourceListener listener = new ExecutorEventSourceListener(new EventSourceListener() {
+            @Override
+            public void onFailure(EventSource eventSource, Throwable t, okhttp3.Response response) {
+                failures.add(t);
+            }
+        }, task -> {
+            throw new RejectedExecutionException("shutdown");
+        }, 16, ExecutorEventSourceListener.OverflowPolicy.BLOCK);
+        listener.onOpen(source, null);
+        Assert.assertTrue(source.isCancelled());
+        Assert.assertEquals(1, failures.size());
+        Assert.assertTrue(failures.get(0) instanceof RejectedExecutionException);
+        //取消之后OkHttp回调的onFailure不会重复通知
+        listener.onEvent(source, null, null, "a");
+        listener.onFailure(source, new IOException("Canceled"), null);
+        Assert.assertEquals(1, failures.size());
+    }
+
+    @Test
+    public void chatCompletionsIterator() {
+        Message message = Message.builder().role(Message.Role.USER).content("随便写一首诗").build();
+        ChatCompletion chatCompletion = ChatCompletion.builder().messages(Arrays.asList(message)).build();
+        try (Stream<String> content = client.streamChatCompletionContent(chatCompletion)) {
+            content.limit(20).forEach(System.out::print);
+        }
+    }
+
+    @Test
+    public void demultiplexing() {
+        String[] content = new String[2];
+        String[] finishReason = new String[2];
+        DemultiplexingEventSourceListener listener = new DemultiplexingEventSourceListener(index -> new ChoiceListener() {
+            @Override
+            public void onDelta(EventSource eventSource, ChatChoice choice) {
+            }
+
+            @Override
+            public void onFinish(EventSource eventSource, ChatChoice choice) {
+                content[index] = choice.getMessage().getContent();
+                finishReason[index] = choice.getFinishReason();
+            }
+        });
+        listener.onEvent(null, null, null, "{\"choices\":[{\"delta\":{\"content\":\"Hel\"},\"index\":0}]}");
+        listener.onEvent(null, null, null, "{\"choices\":[{\"delta\":{\"content\":\"Bon\"},\"index\":1}]}");
+        listener.onEvent(null, null, null, "{\"choices\":[{\"delta\":{\"content\":\"lo\"},\"index\":0}]}");
+        listener.onEvent(null, null, null, "{\"choices\":[{\"delta\":{},\"index\":0,\"finish_reason\":\"stop\"}]}");
+        listener.onEvent(null, null, null, "{\"choices\":[{\"delta\":{\"content\":\"jour\"},\"index\":1}]}");
+        listener.onEvent(null, null, null, "[DONE]");
+        Assert.assertEquals("Hello", content[0]);
+        Assert.assertEquals("stop", finishReason[0]);
+        Assert.assertEquals("Bonjour", content[1]);
+        Assert.assertNull(finishReason[1]);
+    }
+
+    @Test
+    public void stopCondition() {
+        List<ChatChoice> result = new ArrayList<>();
+        ChatCompletionEventSourceListener delegate = new ChatCompletionEventSourceListener() {
+            @Override
+            protected void onDelta(EventSource eventSource, ChatChoice choice) {
+            }
+
+            @Override
+            protected void onComplete(EventSource eventSource, List<ChatChoice> choices) {
+                result.addAll(choices);
+            }
+        };
+        StopConditionEventSourceListener listener = new StopConditionEventSourceListener(delegate,
+                Arrays.asList(StopConditionEventSourceListener.jsonComplete()));
+        StubEventSource eventSource = new StubEventSource();
+        listener.onEvent(eventSource, null, null, "{\"choices\":[{\"delta\":{\"content\":\"{\\\"a\\\": \\\"}\"},\"index\":0}]}");
+        listener.onEvent(eventSource, null, null, "{\"choices\":[{\"delta\":{\"content\":\"\\\"}\"},\"index\":0}]}");
+        listener.onEvent(eventSource, null, null, "{\"choices\":[{\"delta\":{\"content\":\" trailing\"},\"index\":0}]}");
+        Assert.assertTrue(listener.isStopped());
+        Assert.assertEquals(1, result.size());
+        Assert.assertEquals("{\"a\": \"}\"}", result.get(0).getMessage().getContent());
+        Assert.assertEquals(StopConditionEventSourceListener.DEFAULT_FINISH_REASON, result.get(0).getFinishReason());
+    }
+
+    @Test
+    public void chatCompletionsResumable() throws InterruptedException {
+        ConsoleEventSourceListener eventSourceListener = new ConsoleEventSourceListener();
+        Message message = Message.builder().role(Message.Role.USER).content("随便写一首诗").build();
+        ChatCompletion chatCompletion = ChatCompletion.builder().messages(Arrays.asList(message)).build();
+        StreamHandle handle = client.streamChatCompletion(chatCompletion, eventSourceListener, 2);
+        handle.getCompletion().whenComplete((v, t) -> log.info("请求结束：{}", handle.getStatus()));
+        CountDownLatch countDownLatch = new CountDownLatch(1);
+        countDownLatch.await(30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 连接中断后续接：业务监听器收到的onOpen、role、content连续，看不到中间的异常
+     */
+    @Test
+    public void resumableSeamless() throws InterruptedException {
+        BlockingQueue<EventSourceListener> connections = new LinkedBlockingQueue<>();
+        List<ChatCompletion> requests = new ArrayList<>();
+        StubEventSource source = new StubEventSource();
+        List<String> received = new ArrayList<>();
+        StreamHandle handle = new StreamHandle();
+        EventSourceListener delegate = handle.listener(new EventSourceListener() {
+            @Override
+            public void onOpen(EventSource eventSource, okhttp3.Response response) {
+                received.add("open");
+            }
+
+            @Override
+            public void onEvent(EventSource eventSource, String id, String type, String data) {
+                received.add(data);
+            }
+
+            @Override
+            public void onClosed(EventSource eventSource) {
+                received.add("closed");
+            }
+
+            @Override
+            public void onFailure(EventSource eventSource, Throwable t, okhttp3.Response response) {
+                received.add("failure");
+            }
+        });
+        Message message = Message.builder().role(Message.Role.USER).content("hi").build();
+        ChatCompletion chatCompletion = ChatCompletion.builder().messages(Arrays.asList(message)).stream(true).build();
+        new ResumableEventSourceListener(chatCompletion, delegate, handle, 1, 1, (request, listener) -> {
+            requests.add(request);
+            connections.add(listener);
+            return source;
+        }).connect();
+        String role = "{\"choices\":[{\"delta\":{\"role\":\"assistant\"},\"index\":0}]}";
+        String hel = "{\"choices\":[{\"delta\":{\"content\":\"Hel\"},\"index\":0}]}";
+        String lo = "{\"choices\":[{\"delta\":{\"content\":\"lo\"},\"index\":0,\"finish_reason\":\"stop\"}]}";
+        EventSourceListener first = connections.poll(1, TimeUnit.SECONDS);
+        first.onOpen(source, null);
+        first.onEvent(source, null, null, role);
+        first.onEvent(source, null, null, hel);
+        first.onFailure(source, new IOException("connection reset"), null);
+        EventSourceListener second = connections.poll(1, TimeUnit.SECONDS);
+        Assert.assertNotNull(second);
+        second.onOpen(source, null);
+        second.onEvent(source, null, null, role);
+        second.onEvent(source, null, null, lo);
+        second.onEvent(source, null, null, "[DONE]");
+        second.onClosed(source);
+        Assert.assertEquals(Arrays.asList("open", role, hel, lo, "[DONE]", "closed"), received);
+        Assert.assertEquals(StreamHandle.Status.COMPLETED, handle.getStatus());
+        List<Message> resumed = requests.get(1).getMessages();
+        Assert.assertEquals(Message.Role.ASSISTANT.getName(), resumed.get(resumed.size() - 1).getRole());
+        Assert.assertEquals("Hel", resumed.get(resumed.size() - 1).getContent());
+    }
+
+    /**
+     * 续接请求无法发出时业务监听器收到onFailure，句柄为连接异常；额度用尽不续接；n不为1时报参数异常
+     */
+    @Test
+    public void resumableFailure() throws InterruptedException {
+        StubEventSource source = new StubEventSource();
+        BlockingQueue<Throwable> failures = new LinkedBlockingQueue<>();
+        EventSourceListener delegate = new EventSourceListener() {
+            @Override
+            public void onFailure(EventSource eventSource, Throwable t, okhttp3.Response response) {
+                failures.add(Objects.nonNull(t) ? t : new IllegalStateException(String.valueOf(response.code())));
+            }
+        };
+        Message message = Message.builder().role(Message.Role.USER).content("hi").build();
+        ChatCompletion chatCompletion = ChatCompletion.builder().messages(Arrays.asList(message)).stream(true).build();
+
+        StreamHandle handle = new StreamHandle();
+        int[] calls = new int[1];
+        ResumableEventSourceListener broken = new ResumableEventSourceListener(chatCompletion, delegate, handle, 3, 1, (request, listener) -> {
+            if (calls[0]++ > 0) {
+                throw new IllegalStateException("connector failed");
+            }
+            return source;
+        });
+        broken.connect();
+        broken.onFailure(source, new IOException("connection reset"), null);
+        Assert.assertEquals("connector failed", failures.poll(1, TimeUnit.SECONDS).getMessage());
+        //业务监听器先收到onFailure，之后句柄才标记为连接异常
+        try {
+            handle.getCompletion().get(1, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException | TimeoutException e) {
+            Assert.assertTrue(e instanceof ExecutionException);
+        }
+        Assert.assertEquals(StreamHandle.Status.FAILED, handle.getStatus());
+
+        StreamHandle quotaHandle = new StreamHandle();
+        ResumableEventSourceListener quota = new ResumableEventSourceListener(chatCompletion, delegate, quotaHandle, 3, 1,
+                (request, listener) -> source);
+        quota.connect();
+        okhttp3.Response response = new okhttp3.Response.Builder()
+                .request(new Request.Builder().url("https://api.openai.com/v1/chat/completions").build())
+                .protocol(okhttp3.Protocol.HTTP_1_1).code(429).message("Too Many Requests")
+                .body(okhttp3.ResponseBody.create(okhttp3.MediaType.parse("application/json"),
+                        "{\"error\":{\"message\":\"quota\",\"type\":\"insufficient_quota\",\"code\":\"insufficient_quota\"}}"))
+                .build();
+        quota.onFailure(source, null, response);
+        Assert.assertEquals("429", failures.poll(1, TimeUnit.SECONDS).getMessage());
+        Assert.assertEquals(0, quota.getResumes());
+
+        chatCompletion.setN(2);
+        try {
+            new ResumableEventSourceListener(chatCompletion, delegate, new StreamHandle(), 1, (request, listener) -> source);
+            Assert.fail();
+        } catch (BaseException e) {
+            Assert.assertEquals(CommonError.PARAM_ERROR.msg(), e.getMessage());
+        }
+    }
+
+    /**
+     * 续接、提前结束、共享流只支持n=1的请求，不发起请求直接报参数异常
+     */
+    @Test
+    public void singleChoiceOnly() {
+        Message message = Message.builder().role(Message.Role.USER).content("hi").build();
+        ChatCompletion chatCompletion = ChatCompletion.builder().messages(Arrays.asList(message)).n(2).build();
+        List<Runnable> calls = Arrays.asList(
+                () -> client.shareChatCompletion(chatCompletion),
+                () -> client.streamChatCompletion(chatCompletion, new ConsoleEventSourceListener(), 1),
+                () -> client.streamChatCompletion(chatCompletion, new ConsoleEventSourceListener(),
+                        Arrays.asList(StopConditionEventSourceListener.maxLength(10))));
+        for (Runnable call : calls) {
+            try {
+                call.run();
+                Assert.fail();
+            } catch (BaseException e) {
+                Assert.assertEquals(CommonError.PARAM_ERROR.msg(), e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void sharedStream() {
+        EventSourceListener[] upstream = new EventSourceListener[1];
+        StubEventSource source = new StubEventSource();
+        SharedChatStream shared = new SharedChatStream((request, listener) -> {
+            upstream[0] = listener;
+            return source;
+        }, new Request.Builder().url("https://api.openai.com/v1/chat/completions").build());
+        List<ChatChoice> first = new ArrayList<>();
+        List<ChatChoice> late = new ArrayList<>();
+        shared.subscribe(new ChatCompletionEventSourceListener() {
+            @Override
+            protected void onDelta(EventSource eventSource, ChatChoice choice) {
+            }
+
+            @Override
+            protected void onComplete(EventSource eventSource, List<ChatChoice> choices) {
+                first.addAll(choices);
+            }
+        });
+        upstream[0].onEvent(source, null, null, "{\"choices\":[{\"delta\":{\"role\":\"assistant\"},\"index\":0}]}");
+        upstream[0].onEvent(source, null, null, "{\"choices\":[{\"delta\":{\"content\":\"Hel\"},\"index\":0}]}");
+        EventSource subscription = shared.subscribe(new ChatCompletionEventSourceListener() {
+            @Override
+            protected void onDelta(EventSource eventSource, ChatChoice choice) {
+            }
+
+            @Override
+            protected void onComplete(EventSource eventSource, List<ChatChoice> choices) {
+                late.addAll(choices);
+            }
+        });
+        Assert.assertEquals(2, shared.getSubscriberCount());
+        upstream[0].onEvent(source, null, null, "{\"choices\":[{\"delta\":{\"content\":\"lo\"},\"index\":0,\"finish_reason\":\"stop\"}]}");
+        upstream[0].onEvent(source, null, null, "[DONE]");
+        Assert.assertEquals("Hello", first.get(0).getMessage().getContent());
+        Assert.assertEquals("Hello", late.get(0).getMessage().getContent());
+        Assert.assertEquals("stop", late.get(0).getFinishReason());
+        subscription.cancel();
+        Assert.assertFalse(source.isCancelled());
+    }
+
+    /**
+     * 通过SseFrameReader把sse文本逐帧交给FrameListener
+     */
+    private static void feed(String sse, FrameListener listener) throws IOException {
+        SseFrameReader reader = new SseFrameReader(new Buffer().writeUtf8(sse), new SseFrameReader.Callback() {
+            @Override
+            public void onData(Buffer data) throws IOException {
+                listener.onData(null, data);
+            }
+
+            @Override
+            public void onDone() {
+                listener.onDone(null);
+            }
+        });
+        while (reader.processNextFrame()) {
+        }
+    }
+
+    /**
+     * 离线测试用的EventSource，记录是否被取消
+     */
+    private static final class StubEventSource implements EventSource {
+        private volatile boolean cancelled;
+
+        @Override
+        public Request request() {
+            return null;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+    }
 }
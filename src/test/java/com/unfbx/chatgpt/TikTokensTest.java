@@ -1,19 +1,29 @@
 package com.unfbx.chatgpt;
 
+import cn.hutool.core.util.StrUtil;
 import com.knuddels.jtokkit.Encodings;
 import com.knuddels.jtokkit.api.Encoding;
 import com.knuddels.jtokkit.api.EncodingRegistry;
 import com.knuddels.jtokkit.api.EncodingType;
+import com.knuddels.jtokkit.api.ModelType;
 import com.unfbx.chatgpt.entity.chat.ChatCompletion;
+import com.unfbx.chatgpt.entity.chat.ChatConversation;
 import com.unfbx.chatgpt.entity.chat.Message;
 import com.unfbx.chatgpt.entity.completions.Completion;
+import com.unfbx.chatgpt.exception.BaseException;
+import com.unfbx.chatgpt.utils.ModelProfile;
 import com.unfbx.chatgpt.utils.TikTokensUtil;
+import com.unfbx.chatgpt.utils.TokenChunker;
+import com.unfbx.chatgpt.utils.TokensCache;
 import lombok.extern.slf4j.Slf4j;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.stream.Collectors;
 
 /**
  * 描述：
@@ -99,4 +109,203 @@ public class TikTokensTest {
         log.info("总tokens数{}", tokens);
     }
 
+    /**
+     * 基本类型int数组编码、解码
+     */
+    @Test
+    public void intArrayTest() {
+        int[] encode = TikTokensUtil.encodeToIntArray(EncodingType.CL100K_BASE, text);
+        log.info(Arrays.toString(encode));
+        String decode = TikTokensUtil.decode(EncodingType.CL100K_BASE, encode);
+        log.info("解码文本：【{}】", decode);
+        Assert.assertEquals(text, decode);
+        Assert.assertEquals(encode.length, TikTokensUtil.tokens(EncodingType.CL100K_BASE, text));
+    }
+
+    /**
+     * tokens计算结果缓存
+     */
+    @Test
+    public void tokensCacheTest() {
+        TikTokensUtil.setTokensCache(new TokensCache(64 * 1024, 0));
+        String modelName = ChatCompletion.Model.GPT_3_5_TURBO.getName();
+        long first = TikTokensUtil.tokens(modelName, messages);
+        long second = TikTokensUtil.tokens(modelName, messages);
+        TokensCache cache = TikTokensUtil.getTokensCache();
+        log.info("总tokens数{}，命中次数{}，未命中次数{}", second, cache.hitCount(), cache.missCount());
+        Assert.assertEquals(first, second);
+        Assert.assertTrue(cache.hitCount() > 0);
+        TikTokensUtil.setTokensCache(new TokensCache());
+    }
+
+    /**
+     * 长度和hashCode都相同的文本不会命中彼此的缓存
+     */
+    @Test
+    public void tokensCacheCollisionTest() {
+        TokensCache cache = new TokensCache(64 * 1024, 0);
+        Encoding enc = TikTokensUtil.getEncoding(EncodingType.CL100K_BASE);
+        String first = "AaAaAaAa";
+        String second = "BBBBBBBB";
+        Assert.assertEquals(first.hashCode(), second.hashCode());
+        Assert.assertEquals(enc.countTokens(first), cache.tokens(enc, first));
+        Assert.assertEquals(enc.countTokens(second), cache.tokens(enc, second));
+        Assert.assertEquals(0, cache.hitCount());
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(enc.countTokens(first), cache.tokens(enc, first));
+        Assert.assertEquals(1, cache.hitCount());
+    }
+
+    /**
+     * 按文本字符数淘汰，超出预算时淘汰最久未访问的缓存项，直到回到预算以内
+     */
+    @Test
+    public void tokensCacheWeightTest() {
+        TokensCache cache = new TokensCache(100, 0, 100);
+        Encoding enc = TikTokensUtil.getEncoding(EncodingType.CL100K_BASE);
+        String first = StrUtil.repeat('a', 40);
+        String second = StrUtil.repeat('b', 40);
+        cache.tokens(enc, first);
+        cache.tokens(enc, second);
+        Assert.assertEquals(80, cache.weight());
+        //访问first，second变为最久未访问
+        cache.tokens(enc, first);
+        cache.tokens(enc, StrUtil.repeat('c', 30));
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(70, cache.weight());
+        //一条较长的文本淘汰多条
+        cache.tokens(enc, StrUtil.repeat('d', 90));
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(90, cache.weight());
+        //超过预算的文本不进入缓存
+        cache.tokens(enc, StrUtil.repeat('e', 101));
+        Assert.assertEquals(90, cache.weight());
+        Assert.assertTrue(cache.weight() <= cache.maxWeight());
+        cache.clear();
+        Assert.assertEquals(0, cache.weight());
+    }
+
+    /**
+     * 会话上下文增量计算tokens
+     */
+    @Test
+    public void conversationTokensTest() {
+        String modelName = ChatCompletion.Model.GPT_3_5_TURBO.getName();
+        ChatConversation conversation = new ChatConversation(modelName);
+        conversation.addAll(messages);
+        log.info("总tokens数{}", conversation.tokens());
+        Assert.assertEquals(TikTokensUtil.tokens(modelName, messages), conversation.tokens());
+        conversation.remove(0);
+        Assert.assertEquals(TikTokensUtil.tokens(modelName, messages.subList(1, 2)), conversation.tokens());
+    }
+
+    /**
+     * 不支持计算tokens的模型，会话上下文和工具类结果一致
+     */
+    @Test
+    public void conversationUnknownModelTest() {
+        String modelName = "unknown-model";
+        ChatConversation conversation = new ChatConversation(modelName);
+        conversation.addAll(messages);
+        Assert.assertEquals(TikTokensUtil.tokens(modelName, messages), conversation.tokens());
+        Assert.assertEquals(0, conversation.tokens());
+    }
+
+    /**
+     * 按模型上下文长度截断历史消息
+     */
+    @Test
+    public void fitContextWindowTest() {
+        List<Message> history = new ArrayList<>();
+        history.add(Message.builder().role(Message.Role.SYSTEM).content("你是一个翻译助手。").build());
+        for (int i = 0; i < 500; i++) {
+            history.add(Message.builder().role(Message.Role.USER).content(text).build());
+        }
+        ChatCompletion completion = ChatCompletion.builder().messages(history).build().fitContextWindow();
+        log.info("截断后消息条数{}，tokens数{}，maxTokens{}", completion.getMessages().size(), completion.tokens(), completion.getMaxTokens());
+        Assert.assertEquals(Message.Role.SYSTEM.getName(), completion.getMessages().get(0).getRole());
+        Assert.assertTrue(completion.tokens() + completion.getMaxTokens() <= 4096);
+    }
+
+    /**
+     * 截断最后一条消息时不拆开中文、emoji等多字节字符，截断结果是原文的后缀
+     */
+    @Test
+    public void fitContextWindowMultibyteTest() {
+        String content = StrUtil.repeat("表情😀中文🇨🇳汉字", 1500);
+        for (int minCompletionTokens = 1000; minCompletionTokens < 1016; minCompletionTokens++) {
+            Message message = Message.builder().role(Message.Role.USER).content(content).build();
+            ChatCompletion completion = ChatCompletion.builder().messages(Arrays.asList(message)).build()
+                    .fitContextWindow(minCompletionTokens);
+            String truncated = completion.getMessages().get(0).getContent();
+            Assert.assertFalse(truncated.isEmpty());
+            Assert.assertTrue(content.endsWith(truncated));
+            Assert.assertFalse(Character.isLowSurrogate(truncated.charAt(0)));
+            Assert.assertEquals(-1, truncated.indexOf('\uFFFD'));
+            Assert.assertTrue(completion.getMaxTokens() >= minCompletionTokens);
+            Assert.assertTrue(completion.tokens() + completion.getMaxTokens() <= 4096);
+        }
+    }
+
+    /**
+     * 为回复预留的tokens数不小于上下文长度时直接报参数异常
+     */
+    @Test(expected = BaseException.class)
+    public void fitContextWindowParamTest() {
+        ChatCompletion.builder().messages(messages).build().fitContextWindow(4096);
+    }
+
+    /**
+     * 批量并行计算
+     */
+    @Test
+    public void batchTokensTest() {
+        List<String> texts = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            texts.add(text + i);
+        }
+        int[] tokens = TikTokensUtil.batchTokens(EncodingType.CL100K_BASE, texts);
+        for (int i = 0; i < texts.size(); i++) {
+            Assert.assertEquals(TikTokensUtil.tokens(EncodingType.CL100K_BASE, texts.get(i)), tokens[i]);
+        }
+        log.info("批量计算文本条数{}", tokens.length);
+    }
+
+    /**
+     * 按tokens数切分长文本
+     */
+    @Test
+    public void tokenChunkerTest() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            builder.append(text).append(" chatgpt-java ").append(i).append('\n');
+        }
+        String document = builder.toString();
+        TokenChunker chunker = new TokenChunker(EncodingType.CL100K_BASE, 200);
+        List<String> chunks = chunker.split(document).collect(Collectors.toList());
+        log.info("文本长度{}，切分块数{}", document.length(), chunks.size());
+        Assert.assertEquals(document, String.join("", chunks));
+        new TokenChunker(EncodingType.CL100K_BASE, 200, 20).chunks(document)
+                .forEach(chunk -> Assert.assertTrue(chunk.getTokens() <= 200));
+    }
+
+    /**
+     * 模型配置：带日期后缀的模型按前缀匹配
+     */
+    @Test
+    public void modelProfileTest() {
+        ModelProfile profile = ModelProfile.of("gpt-4-32k-0613");
+        log.info("模型：{}，上下文长度：{}", profile.getName(), profile.getContextWindow());
+        Assert.assertEquals(ChatCompletion.Model.GPT_4_32K.getName(), profile.getName());
+        Assert.assertEquals(TikTokensUtil.tokens(ChatCompletion.Model.GPT_4.getName(), messages),
+                TikTokensUtil.tokens(ChatCompletion.Model.GPT_4_32K.getName(), messages));
+        //非日期后缀不按前缀匹配
+        Assert.assertNull(ModelProfile.of("gpt-3.5-turbo-instruct"));
+        ModelProfile turbo16k = ModelProfile.of("gpt-3.5-turbo-16k");
+        Assert.assertEquals(ModelType.GPT_3_5_TURBO_16K.getMaxContextLength(), turbo16k.getContextWindow());
+        Assert.assertEquals(TikTokensUtil.tokens(ChatCompletion.Model.GPT_3_5_TURBO.getName(), messages),
+                TikTokensUtil.tokens(turbo16k, messages));
+        Assert.assertEquals(ModelProfile.of("gpt-4o").getContextWindow(), ModelProfile.of("gpt-4o-2024-05-13").getContextWindow());
+    }
+
 }